@@ -5,6 +5,7 @@ import io.methvin.watcher.DirectoryChangeEvent;
 import io.methvin.watcher.DirectoryWatcher;
 import wonder.shaderdisplay.display.Mesh;
 import wonder.shaderdisplay.display.ShaderCompiler;
+import wonder.shaderdisplay.display.TextureLoader;
 import wonder.shaderdisplay.scene.Scene;
 import wonder.shaderdisplay.scene.SceneLayer;
 import wonder.shaderdisplay.scene.SceneStandardLayer;
@@ -30,6 +31,7 @@ public class FileWatcher {
 
 	private final Set<CompilableLayer> pendingShaderRecompilations = new HashSet<>();
 	private final Set<SceneStandardLayer> pendingMeshReloads = new HashSet<>();
+	private final Set<File> pendingTextureReloads = new HashSet<>();
 	private boolean isSceneFileUpdatePending = false;
 	private long latestChangeTimestamp = 0;
 
@@ -93,6 +95,8 @@ public class FileWatcher {
 				isSceneFileUpdatePending = true;
 			} else if (association instanceof WatchableMeshFile) {
 				pendingMeshReloads.add(((WatchableMeshFile) association).affectedLayer);
+			} else if (association instanceof WatchableTextureFile) {
+				pendingTextureReloads.add(association.watchedFile);
 			}
 		}
 	}
@@ -156,7 +160,7 @@ public class FileWatcher {
 	}
 
 	public synchronized boolean hasPendingChanges() {
-		return isSceneFileUpdatePending || !pendingMeshReloads.isEmpty() || !pendingShaderRecompilations.isEmpty();
+		return isSceneFileUpdatePending || !pendingMeshReloads.isEmpty() || !pendingShaderRecompilations.isEmpty() || !pendingTextureReloads.isEmpty();
 	}
 
 	public boolean requiresSceneRecompilation() {
@@ -175,6 +179,9 @@ public class FileWatcher {
 			ShaderCompiler.ShaderCompilationResult r = compiler.compileShaders(errors, pendingLayer);
 			result.success &= r.success;
 			result.fileDependenciesUpdated |= r.fileDependenciesUpdated;
+			// textures referenced by the new sources must be watched too
+			if (pendingLayer instanceof SceneLayer layer && layer.collectResourceFiles().anyMatch(a -> !watchedFiles.containsKey(a.watchedFile.getAbsoluteFile())))
+				result.fileDependenciesUpdated = true;
 			if (!r.success)
 				errors.dump(Main.logger);
 		}
@@ -196,6 +203,16 @@ public class FileWatcher {
 		pendingMeshReloads.clear();
 	}
 
+	/**
+	 * Loads modified textures again in place, shaders using them are not recompiled.
+	 */
+	public void processTextureReloads() {
+		for (File textureFile : pendingTextureReloads)
+			TextureLoader.reload(textureFile);
+
+		pendingTextureReloads.clear();
+	}
+
 
 	public static class WatchableResourceAssociation {
 
@@ -222,6 +239,12 @@ public class FileWatcher {
 		}
 	}
 
+	public static class WatchableTextureFile extends WatchableResourceAssociation {
+		public WatchableTextureFile(File textureFile) {
+			super(textureFile);
+		}
+	}
+
 	public static class WatchableMeshFile extends WatchableResourceAssociation {
 
 		private final SceneStandardLayer affectedLayer;
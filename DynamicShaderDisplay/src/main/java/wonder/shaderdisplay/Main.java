@@ -102,6 +102,8 @@ public class Main {
 		public DisplayOptions displayOptions;
 		@Option(name = "--no-texture-cache", desc = "Disable texture caching")
 		public boolean noTextureCache;
+		@Option(name = "--texture-budget", valueName = "MB", desc = "Video memory that textures no shader uses anymore may keep in the texture cache")
+		public int textureBudget = 1024;
 		@Option(name = "--hard-reload", desc = "Reload every shader file every time a change is detected\n in one of their folders (may be required with some configurations)")
 		public boolean hardReload;
 		@Option(name = "--vsync", desc = "Enables vsync, when used the info given in the window title may be inaccurate")
@@ -132,12 +134,38 @@ public class Main {
 		public float framerate = 60;
 		@Option(name = "--duration", shorthand = "-d", desc = "Output video duration in seconds, either -d or -l must be specified")
 		public float videoDuration;
-		@Option(name = "--output", shorthand = "-o", valueName = "file", desc = "Output file path, defaults to <shaderfile>.mp4")
+		@Option(name = "--output", shorthand = "-o", valueName = "file", desc = "Output file path, defaults to <shaderfile>.mp4\n use a path containing {} to write an image sequence instead, ie: frames/{}.png\n supported image formats are png, ppm and raw (uncompressed bgra)\n use '-' to stream frames to stdout, see --stream-format")
 		public File outputFile = null;
 		@Option(name = "--preview", shorthand = "-p", desc = "Show the window during generation")
 		public boolean preview = false;
 		@Option(name = "--overwrite", shorthand = "-u", desc = "Write the output file even if it already exists")
 		public boolean overwriteExistingFile;
+		@Option(name = "--readback-buffers", valueName = "count", desc = "Number of frames read back asynchronously from the GPU, use 1 to compare with synchronous readbacks")
+		public int readbackBuffers = 3;
+		@Option(name = "--conversion-threads", valueName = "count", desc = "Number of threads preparing read back frames for encoding, or compressing images of a sequence")
+		public int conversionThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		@Option(name = "--cpu-yuv", desc = "Read back BGRA frames and convert them to YUV on the CPU instead of on the GPU")
+		public boolean cpuColorConversion;
+		@Option(name = "--png-compression", valueName = "level", desc = "Deflate level used for png image sequences, from 0 (fastest) to 9 (smallest)")
+		public int pngCompressionLevel = 6;
+		@Option(name = "--workers", valueName = "count", desc = "Number of processes rendering separate parts of the video in parallel,\n only used when the scene does not carry state between frames")
+		public int workers = 1;
+		@Option(name = "--stream-format", valueName = "format", desc = "Format of the frames written to stdout when the output is '-',\n 'y4m' or 'bgra' (raw frames without header, top row first)")
+		public StreamFormat streamFormat = StreamFormat.Y4M;
+
+		@Option(name = "--no-dedup", desc = "Convert and encode every frame even when it is identical to the previous one")
+		public boolean noDeduplication;
+		@Option(name = "--checkpoint-every", valueName = "frames", desc = "Save the state of the scene every <frames> frames so that a crashed export can be resumed")
+		public int checkpointInterval = 0;
+		@Option(name = "--checkpoint-dir", valueName = "directory", desc = "Directory holding the checkpoints, defaults to <output>.checkpoints")
+		public File checkpointDirectory;
+		@Option(name = "--resume", desc = "Resume the export from the latest checkpoint, the same options as the interrupted export must be used")
+		public boolean resume;
+
+		public enum StreamFormat {
+			Y4M,
+			BGRA,
+		}
 
 	}
 	
@@ -162,6 +190,28 @@ public class Main {
 		public boolean openViewer = false;
 		@Option(name = "--no-output", desc = "Do not write the output file, use with --viewer or as a sanity check")
 		public boolean noOutput = false;
+		@Option(name = "--prefetch", valueName = "count", desc = "With the image command, number of input images decoded ahead of rendering")
+		public int prefetchCount = 4;
+		@Option(name = "--io-threads", valueName = "count", desc = "With the image command, number of threads decoding inputs and as many encoding outputs")
+		public int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		@Option(name = "--memory-budget", valueName = "MB", desc = "With the image command, memory held by decoded inputs and outputs waiting to be written,\n shared equally between inputs and outputs")
+		public int memoryBudget = 1024;
+		@Option(name = "--swap-chains", valueName = "count", desc = "With the image command and --size-to-input, number of render target sets kept\n for reuse by images of the same resolution")
+		public int swapChainPoolSize = 4;
+		@Option(name = "--vram-budget", valueName = "MB", desc = "With the image command and --size-to-input, video memory that render target sets\n kept for reuse may use")
+		public int vramBudget = 1024;
+		@Option(name = "--batch", valueName = "count", desc = "With the image command, render up to <count> consecutive input images of the same size\n at once, input samplers become sampler2DArray indexed by u_layer (see the README)")
+		public int batchSize = 1;
+		@Option(name = "--watch", valueName = "dir", desc = "With the image command, keep running and process images as they are added to <dir>,\n shaders are reloaded when they change")
+		public File watchDirectory = null;
+		@Option(name = "--cache", valueName = "dir", desc = "With the image command, keep copies of the rendered images in <dir> and reuse them\n when the shaders, options and input did not change (see the README)")
+		public File cacheDirectory = null;
+		@Option(name = "--cache-size", valueName = "MB", desc = "Maximum size of the --cache directory, least recently used images are removed first")
+		public int cacheSize = 1024;
+		@Option(name = "--png-compression", valueName = "level", desc = "Deflate level used for png outputs, from 0 (fastest) to 9 (smallest)")
+		public int pngCompressionLevel = 6;
+		@Option(name = "--tile-size", valueName = "pixels", desc = "Render the image in tiles of <pixels>x<pixels> written straight to a png file,\n used automatically for images larger than 8192 pixels")
+		public int tileSize = 0;
 	}
 	
 	@EntryPoint(path = "snippets", help = "Prints a set of useful glsl snippets, filter with -f and print code with -c")
@@ -191,7 +241,7 @@ public class Main {
 	}
 	
 	@Argument(name = "fragment", desc = "The fragment shader file")
-	@Argument(name = "file", desc = "One or more image files to apply the shader to")
+	@Argument(name = "file", desc = "One or more image files to apply the shader to, may be empty with --watch", defaultValue = Argument.DEFAULT_EMPTY)
 	@EntryPoint(path = "image", help = "Applies a shader on each input image and saves the output")
 	public static void applyShaderToImages(ImagePassOptions options, File fragment, File... inputFiles) {
 		EntryImage.runOnEach(options, fragment, inputFiles);
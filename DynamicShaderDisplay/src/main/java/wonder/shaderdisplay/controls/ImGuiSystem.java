@@ -9,6 +9,7 @@ import imgui.gl3.ImGuiImplGl3;
 import imgui.glfw.ImGuiImplGlfw;
 import imgui.type.ImBoolean;
 import wonder.shaderdisplay.display.GLWindow;
+import wonder.shaderdisplay.display.TextureCache;
 import wonder.shaderdisplay.scene.Scene;
 import wonder.shaderdisplay.serial.AudioInputStream;
 import wonder.shaderdisplay.serial.UserConfig;
@@ -27,11 +28,13 @@ public class ImGuiSystem {
     private final Window uniformsWindow = new Window("Uniforms");
     private final Window timelineWindow = new Window("Timeline");
     private final Window debugToolWindow = new Window("Debug");
+    private final Window texturesWindow = new Window("Textures");
     private final Window[] windows = {
         controlsWindow,
         uniformsWindow,
         timelineWindow,
         debugToolWindow,
+        texturesWindow,
     };
 
     private boolean isSceneValid = true;
@@ -63,6 +66,7 @@ public class ImGuiSystem {
             requestRerender |= Optional.ofNullable(uniformsWindow.render(scene::renderControls)).orElse(false);
             timelineWindow.render(timeline::renderControls);
             debugToolWindow.render(debugTool::renderControls);
+            texturesWindow.render(TextureCache::renderControls);
         }
 
         ImGui.popStyleColor(2);
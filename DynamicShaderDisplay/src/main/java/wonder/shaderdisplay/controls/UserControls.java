@@ -34,6 +34,7 @@ import wonder.shaderdisplay.display.GLWindow;
 import wonder.shaderdisplay.display.Texture;
 import wonder.shaderdisplay.scene.Scene;
 import wonder.shaderdisplay.scene.SceneRenderTarget;
+import wonder.shaderdisplay.serial.PngEncoder;
 import wonder.shaderdisplay.serial.UserConfig;
 
 public class UserControls {
@@ -238,11 +239,15 @@ public class UserControls {
 		Texture texture = scene.swapChain.getAttachment(renderTargetName);
 		int w = texture.getWidth(), h = texture.getHeight();
 		int[] buffer = scene.swapChain.readColorAttachment(renderTargetName, null, options.background);
-		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-		image.setRGB(0, 0, w, h, buffer, w*(h-1), -w);
 		
 		try {
-			ImageIO.write(image, format, file);
+			if(format.equals("PNG")) {
+				new PngEncoder(w, h, true, UserConfig.config.screenshotPngCompression).write(file, buffer, w*(h-1), -w);
+			} else {
+				BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+				image.setRGB(0, 0, w, h, buffer, w*(h-1), -w);
+				ImageIO.write(image, format, file);
+			}
 			Main.logger.info("Saved screenshot at " + file.getCanonicalPath());
 		} catch (IOException e) {
 			Main.logger.merr(e, "Could not save screenshot");
@@ -0,0 +1,351 @@
+package wonder.shaderdisplay.display;
+
+import fr.wonder.commons.files.FilesUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import wonder.shaderdisplay.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.EXTTextureSRGB.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL42.*;
+
+/**
+ * A block compressed image read from a DDS or KTX2 file, uploaded as is with its mip chain.
+ * <p>
+ * Levels are slices of the memory mapped file, rows ordered as stored: the first row of the file
+ * is sampled at v=0, files must be exported flipped vertically to be sampled the same way as
+ * other textures. BC1 to BC3 are decompressed on the CPU when the driver does not support S3TC,
+ * the other formats are core in the opengl versions the viewer requires.
+ */
+record CompressedImage(int width, int height, BlockFormat format, boolean srgb, ByteBuffer[] levels) {
+
+    private static final int DDS_MAGIC = 0x20534444; // "DDS "
+    private static final int DDS_HEADER_SIZE = 4 + 124;
+    private static final int DDS_DX10_HEADER_SIZE = 20;
+    private static final int DDPF_FOURCC = 0x4;
+    private static final int DDSCAPS2_CUBEMAP = 0x200;
+    private static final int DDSCAPS2_VOLUME = 0x200000;
+    private static final int DDS_DIMENSION_TEXTURE2D = 3;
+
+    private static final byte[] KTX2_IDENTIFIER = { (byte) 0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte) 0xBB, '\r', '\n', 0x1A, '\n' };
+    private static final int KTX2_LEVEL_INDEX_OFFSET = 80;
+
+    static boolean isCompressedFile(File file) {
+        String extension = FilesUtils.getFileExtension(file).toLowerCase();
+        return extension.equals("dds") || extension.equals("ktx2");
+    }
+
+    /**
+     * Maps a DDS or KTX2 file, may be called from any thread.
+     */
+    static CompressedImage read(File file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        try {
+            if (FilesUtils.getFileExtension(file).equalsIgnoreCase("dds"))
+                return readDds(data);
+            return readKtx2(data);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated file", e);
+        }
+    }
+
+    private static CompressedImage readDds(ByteBuffer data) throws IOException {
+        if (data.getInt(0) != DDS_MAGIC)
+            throw new IOException("Not a DDS file");
+        int height = data.getInt(12);
+        int width = data.getInt(16);
+        int levelCount = Math.max(1, data.getInt(28));
+        int pixelFormatFlags = data.getInt(80);
+        int fourCC = data.getInt(84);
+        int caps2 = data.getInt(112);
+        if ((caps2 & (DDSCAPS2_CUBEMAP | DDSCAPS2_VOLUME)) != 0)
+            throw new IOException("Cube maps and volume textures are not supported");
+        if ((pixelFormatFlags & DDPF_FOURCC) == 0)
+            throw new IOException("Only block compressed DDS files are supported");
+
+        int dataOffset = DDS_HEADER_SIZE;
+        BlockFormat format;
+        boolean srgb = false;
+        switch (fourCCToString(fourCC)) {
+        case "DXT1" -> format = BlockFormat.BC1;
+        case "DXT2", "DXT3" -> format = BlockFormat.BC2;
+        case "DXT4", "DXT5" -> format = BlockFormat.BC3;
+        case "ATI1", "BC4U" -> format = BlockFormat.BC4;
+        case "BC4S" -> format = BlockFormat.BC4_SNORM;
+        case "ATI2", "BC5U" -> format = BlockFormat.BC5;
+        case "BC5S" -> format = BlockFormat.BC5_SNORM;
+        case "DX10" -> {
+            int dxgiFormat = data.getInt(DDS_HEADER_SIZE);
+            int dimension = data.getInt(DDS_HEADER_SIZE + 4);
+            int arraySize = data.getInt(DDS_HEADER_SIZE + 12);
+            if (dimension != DDS_DIMENSION_TEXTURE2D || arraySize > 1)
+                throw new IOException("Only single 2D textures are supported");
+            dataOffset += DDS_DX10_HEADER_SIZE;
+            srgb = dxgiFormat == 72 || dxgiFormat == 75 || dxgiFormat == 78 || dxgiFormat == 99;
+            format = switch (dxgiFormat) {
+                case 71, 72 -> BlockFormat.BC1;
+                case 74, 75 -> BlockFormat.BC2;
+                case 77, 78 -> BlockFormat.BC3;
+                case 80 -> BlockFormat.BC4;
+                case 81 -> BlockFormat.BC4_SNORM;
+                case 83 -> BlockFormat.BC5;
+                case 84 -> BlockFormat.BC5_SNORM;
+                case 95 -> BlockFormat.BC6H_UFLOAT;
+                case 96 -> BlockFormat.BC6H_SFLOAT;
+                case 98, 99 -> BlockFormat.BC7;
+                default -> throw new IOException("Unsupported DXGI format " + dxgiFormat);
+            };
+        }
+        default -> throw new IOException("Unsupported DDS format '" + fourCCToString(fourCC) + "'");
+        }
+
+        // levels are stored largest first, each one right after the previous
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        for (int level = 0, offset = dataOffset; level < levelCount; level++) {
+            int size = format.getLevelSize(width, height, level);
+            levels[level] = data.slice(offset, size);
+            offset += size;
+        }
+        return new CompressedImage(width, height, format, srgb, levels);
+    }
+
+    private static CompressedImage readKtx2(ByteBuffer data) throws IOException {
+        for (int i = 0; i < KTX2_IDENTIFIER.length; i++) {
+            if (data.get(i) != KTX2_IDENTIFIER[i])
+                throw new IOException("Not a KTX2 file");
+        }
+        int vkFormat = data.getInt(12);
+        int width = data.getInt(20);
+        int height = data.getInt(24);
+        int depth = data.getInt(28);
+        int layerCount = data.getInt(32);
+        int faceCount = data.getInt(36);
+        // no levels means the mips should be generated, which block compressed formats cannot do
+        int levelCount = Math.max(1, data.getInt(40));
+        int supercompressionScheme = data.getInt(44);
+        if (depth > 0 || layerCount > 0 || faceCount != 1)
+            throw new IOException("Only single 2D textures are supported");
+        if (supercompressionScheme != 0)
+            throw new IOException("Supercompressed KTX2 files (Basis, zstd) are not supported");
+
+        boolean srgb = vkFormat == 132 || vkFormat == 134 || vkFormat == 136 || vkFormat == 138 || vkFormat == 146;
+        BlockFormat format = switch (vkFormat) {
+            case 131, 132 -> BlockFormat.BC1_RGB;
+            case 133, 134 -> BlockFormat.BC1;
+            case 135, 136 -> BlockFormat.BC2;
+            case 137, 138 -> BlockFormat.BC3;
+            case 139 -> BlockFormat.BC4;
+            case 140 -> BlockFormat.BC4_SNORM;
+            case 141 -> BlockFormat.BC5;
+            case 142 -> BlockFormat.BC5_SNORM;
+            case 143 -> BlockFormat.BC6H_UFLOAT;
+            case 144 -> BlockFormat.BC6H_SFLOAT;
+            case 145, 146 -> BlockFormat.BC7;
+            default -> throw new IOException("Unsupported KTX2 format " + vkFormat + ", only BC formats are supported");
+        };
+
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            int entry = KTX2_LEVEL_INDEX_OFFSET + level * 3 * Long.BYTES;
+            long offset = data.getLong(entry);
+            long length = data.getLong(entry + Long.BYTES);
+            int size = format.getLevelSize(width, height, level);
+            if (length < size || offset + size > data.capacity())
+                throw new IOException("Level " + level + " is truncated");
+            levels[level] = data.slice((int) offset, size);
+        }
+        return new CompressedImage(width, height, format, srgb, levels);
+    }
+
+    private static String fourCCToString(int fourCC) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++)
+            chars[i] = (char) ((fourCC >> (8 * i)) & 0xff);
+        return new String(chars);
+    }
+
+    long getSizeInBytes() {
+        long size = 0;
+        for (ByteBuffer level : levels)
+            size += level.remaining();
+        return size;
+    }
+
+    /**
+     * Uploads the levels, or the decompressed first level if the driver does not support the
+     * format. Must be called from the render thread.
+     *
+     * @param options only the srgb format is taken into account, the file gives the mips
+     */
+    Texture createTexture(TextureOptions options) {
+        boolean useSrgb = srgb || options.format() == Texture.InternalTextureFormat.SRGB8_ALPHA8;
+        if (options.format() != null && options.format() != Texture.InternalTextureFormat.SRGB8_ALPHA8)
+            Main.logger.warn("Compressed textures keep the format of their file, ignoring " + options.format());
+        if (options.mipmaps() && levels.length == 1)
+            Main.logger.warn("Compressed textures use the mips of their file, ignoring 'mipmaps'");
+
+        if (format.isSupported(useSrgb))
+            return Texture.createCompressedTexture(width, height, format.getGlId(useSrgb), levels);
+
+        Main.logger.warn("The driver does not support " + format + " textures, decompressing on the CPU");
+        Texture.InternalTextureFormat fallbackFormat = useSrgb ? Texture.InternalTextureFormat.SRGB8_ALPHA8 : Texture.InternalTextureFormat.RGBA8;
+        Texture texture = Texture.createImageTexture(width, height, fallbackFormat, levels.length > 1);
+        texture.uploadPixels(decompress());
+        return texture;
+    }
+
+    /**
+     * Decodes the first level of a BC1, BC2 or BC3 image.
+     *
+     * @return argb pixels, rows ordered as in the file
+     */
+    int[] decompress() {
+        if (!format.isS3tc)
+            throw new UnsupportedOperationException("Cannot decompress " + format);
+        ByteBuffer blocks = levels[0].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int[] pixels = new int[width * height];
+        int[] palette = new int[4];
+        int[] alphas = new int[16];
+        int blocksX = (width + 3) / 4, blocksY = (height + 3) / 4;
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                int offset = (by * blocksX + bx) * format.blockSize;
+                if (format == BlockFormat.BC2)
+                    readExplicitAlphas(blocks, offset, alphas);
+                else if (format == BlockFormat.BC3)
+                    readInterpolatedAlphas(blocks, offset, alphas);
+                boolean isBc1 = format == BlockFormat.BC1 || format == BlockFormat.BC1_RGB;
+                int colorOffset = isBc1 ? offset : offset + 8;
+                readColorPalette(blocks, colorOffset, palette, isBc1, format == BlockFormat.BC1);
+                int indices = blocks.getInt(colorOffset + 4);
+                for (int i = 0; i < 16; i++) {
+                    int x = bx * 4 + (i & 3), y = by * 4 + (i >> 2);
+                    if (x >= width || y >= height)
+                        continue;
+                    int color = palette[(indices >>> (2 * i)) & 3];
+                    if (!isBc1)
+                        color = (color & 0xffffff) | alphas[i] << 24;
+                    pixels[y * width + x] = color;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @param allowThreeColors whether blocks with {@code c0 <= c1} use three colors and black, as
+     *                         in BC1 but not in the color part of BC2 and BC3
+     * @param transparentBlack whether that black is transparent, it is opaque in BC1 rgb images
+     */
+    private static void readColorPalette(ByteBuffer blocks, int offset, int[] palette, boolean allowThreeColors, boolean transparentBlack) {
+        int c0 = blocks.getShort(offset) & 0xffff;
+        int c1 = blocks.getShort(offset + 2) & 0xffff;
+        palette[0] = expand565(c0);
+        palette[1] = expand565(c1);
+        if (c0 > c1 || !allowThreeColors) {
+            palette[2] = 0xff000000 | mixColors(palette[0], palette[1], 2, 1, 3);
+            palette[3] = 0xff000000 | mixColors(palette[0], palette[1], 1, 2, 3);
+        } else {
+            palette[2] = 0xff000000 | mixColors(palette[0], palette[1], 1, 1, 2);
+            palette[3] = transparentBlack ? 0 : 0xff000000;
+        }
+    }
+
+    private static void readExplicitAlphas(ByteBuffer blocks, int offset, int[] alphas) {
+        long bits = blocks.getLong(offset);
+        for (int i = 0; i < 16; i++)
+            alphas[i] = (int) ((bits >>> (4 * i)) & 0xf) * 0x11;
+    }
+
+    private static void readInterpolatedAlphas(ByteBuffer blocks, int offset, int[] alphas) {
+        int a0 = blocks.get(offset) & 0xff;
+        int a1 = blocks.get(offset + 1) & 0xff;
+        long bits = 0;
+        for (int i = 0; i < 6; i++)
+            bits |= (long) (blocks.get(offset + 2 + i) & 0xff) << (8 * i);
+        for (int i = 0; i < 16; i++) {
+            int index = (int) ((bits >>> (3 * i)) & 7);
+            if (index < 2)
+                alphas[i] = index == 0 ? a0 : a1;
+            else if (a0 > a1)
+                alphas[i] = ((8 - index) * a0 + (index - 1) * a1) / 7;
+            else if (index < 6)
+                alphas[i] = ((6 - index) * a0 + (index - 1) * a1) / 5;
+            else
+                alphas[i] = index == 6 ? 0 : 255;
+        }
+    }
+
+    private static int expand565(int color) {
+        int r = (color >> 11) & 0x1f, g = (color >> 5) & 0x3f, b = color & 0x1f;
+        return 0xff000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+    }
+
+    private static int mixColors(int c0, int c1, int w0, int w1, int divisor) {
+        int mixed = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int channel = (((c0 >> shift) & 0xff) * w0 + ((c1 >> shift) & 0xff) * w1) / divisor;
+            mixed |= channel << shift;
+        }
+        return mixed;
+    }
+
+    enum BlockFormat {
+
+        BC1(8, GL_COMPRESSED_RGBA_S3TC_DXT1_EXT, GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1_EXT, true),
+        /** BC1 without alpha, blocks in three colors mode decode their black as opaque */
+        BC1_RGB(8, GL_COMPRESSED_RGB_S3TC_DXT1_EXT, GL_COMPRESSED_SRGB_S3TC_DXT1_EXT, true),
+        BC2(16, GL_COMPRESSED_RGBA_S3TC_DXT3_EXT, GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT3_EXT, true),
+        BC3(16, GL_COMPRESSED_RGBA_S3TC_DXT5_EXT, GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5_EXT, true),
+        BC4(8, GL_COMPRESSED_RED_RGTC1, GL_COMPRESSED_RED_RGTC1, false),
+        BC4_SNORM(8, GL_COMPRESSED_SIGNED_RED_RGTC1, GL_COMPRESSED_SIGNED_RED_RGTC1, false),
+        BC5(16, GL_COMPRESSED_RG_RGTC2, GL_COMPRESSED_RG_RGTC2, false),
+        BC5_SNORM(16, GL_COMPRESSED_SIGNED_RG_RGTC2, GL_COMPRESSED_SIGNED_RG_RGTC2, false),
+        BC6H_UFLOAT(16, GL_COMPRESSED_RGB_BPTC_UNSIGNED_FLOAT, GL_COMPRESSED_RGB_BPTC_UNSIGNED_FLOAT, false),
+        BC6H_SFLOAT(16, GL_COMPRESSED_RGB_BPTC_SIGNED_FLOAT, GL_COMPRESSED_RGB_BPTC_SIGNED_FLOAT, false),
+        BC7(16, GL_COMPRESSED_RGBA_BPTC_UNORM, GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM, false);
+
+        final int blockSize;
+        private final int glId, srgbGlId;
+        private final boolean isS3tc;
+
+        BlockFormat(int blockSize, int glId, int srgbGlId, boolean isS3tc) {
+            this.blockSize = blockSize;
+            this.glId = glId;
+            this.srgbGlId = srgbGlId;
+            this.isS3tc = isS3tc;
+        }
+
+        int getGlId(boolean srgb) {
+            return srgb ? srgbGlId : glId;
+        }
+
+        int getLevelSize(int width, int height, int level) {
+            int levelWidth = Math.max(1, width >> level), levelHeight = Math.max(1, height >> level);
+            return ((levelWidth + 3) / 4) * ((levelHeight + 3) / 4) * blockSize;
+        }
+
+        /**
+         * Must be called from the render thread.
+         */
+        boolean isSupported(boolean srgb) {
+            if (!isS3tc)
+                return true;
+            GLCapabilities capabilities = GL.getCapabilities();
+            return capabilities.GL_EXT_texture_compression_s3tc && (!srgb || capabilities.GL_EXT_texture_sRGB);
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package wonder.shaderdisplay.display;
+
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.scene.Macro;
+import wonder.shaderdisplay.serial.Resources;
+
+import java.util.stream.Stream;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Prepares rendered frames for export on the GPU: frames are flipped so that rows are read back
+ * top to bottom, the background is applied and, for {@link OutputFormat#YUV420P}, colors are
+ * converted so that exports read back 1.5 bytes per pixel instead of 4.
+ */
+public class FrameConversionPass {
+
+    public enum OutputFormat {
+
+        /**
+         * The three planes are packed in a single R8 texture of size {@code (width, height*3/2)},
+         * read back it is a contiguous I420 buffer: the Y plane followed by the U and V planes.
+         */
+        YUV420P(Texture.InternalTextureFormat.R8, TextureReadbackRing.ReadbackFormat.RED),
+        /**
+         * Colors in an RGBA8 texture of the frame's size, read back as BGRA. Alpha is kept only
+         * with the {@link Main.DisplayOptions.BackgroundType#NORMAL normal} background.
+         */
+        BGRA(Texture.InternalTextureFormat.RGBA8, TextureReadbackRing.ReadbackFormat.BGRA);
+
+        private final Texture.InternalTextureFormat textureFormat;
+        public final TextureReadbackRing.ReadbackFormat readbackFormat;
+
+        OutputFormat(Texture.InternalTextureFormat textureFormat, TextureReadbackRing.ReadbackFormat readbackFormat) {
+            this.textureFormat = textureFormat;
+            this.readbackFormat = readbackFormat;
+        }
+    }
+
+    private static final int[] shaders = new int[OutputFormat.values().length];
+    private static int vao;
+
+    private final int width, height;
+    private final OutputFormat format;
+    private final Texture target;
+    private final FrameBuffer fbo;
+
+    public FrameConversionPass(int width, int height, OutputFormat format) {
+        if (format == OutputFormat.YUV420P && (width % 2 != 0 || height % 2 != 0))
+            throw new IllegalArgumentException("YUV420 conversion requires even dimensions, got " + width + "x" + height);
+        if (shaders[format.ordinal()] == 0)
+            shaders[format.ordinal()] = buildShader(format);
+
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.target = new Texture(width, getOutputHeight(), format.textureFormat);
+        this.fbo = new FrameBuffer();
+        this.fbo.addAttachment(target);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    private static int buildShader(OutputFormat format) {
+        if (vao == 0)
+            vao = glGenVertexArrays();
+        int shader = glCreateProgram();
+        String source = Resources.readResource("/frame_conversion.fs");
+        if (format == OutputFormat.BGRA)
+            source = ShaderCompiler.addMacroDefinitions(source, Stream.of(new Macro("RGB_OUTPUT")));
+        int vertex = ShaderCompiler.buildRawShader(Resources.readResource("/blit.vs"), GL_VERTEX_SHADER);
+        int fragment = ShaderCompiler.buildRawShader(source, GL_FRAGMENT_SHADER);
+        glAttachShader(shader, vertex);
+        glAttachShader(shader, fragment);
+        glLinkProgram(shader);
+        glValidateProgram(shader);
+        if (glGetProgrami(shader, GL_LINK_STATUS) == GL_FALSE || glGetProgrami(shader, GL_VALIDATE_STATUS) == GL_FALSE)
+            throw new RuntimeException("Failed to build the frame conversion shader");
+        ShaderCompiler.deleteShaders(vertex, fragment);
+        return shader;
+    }
+
+    /**
+     * Converts {@code source} into the output texture, which is overwritten by the next call.
+     *
+     * @param background {@link Main.DisplayOptions.BackgroundType#BLACK black} multiplies colors by
+     *                   their alpha, other backgrounds keep colors as they are
+     */
+    public Texture convert(Texture source, Main.DisplayOptions.BackgroundType background) {
+        if (source.getWidth() != width || source.getHeight() != height)
+            throw new IllegalArgumentException("Invalid texture size, got " + source.getWidth() + "x" + source.getHeight() + " expected " + width + "x" + height);
+
+        fbo.bind();
+        source.bind(0);
+        glBindVertexArray(vao);
+        glDisable(GL_DEPTH_TEST);
+        glDisable(GL_CULL_FACE);
+        glDisable(GL_BLEND);
+        int shader = shaders[format.ordinal()];
+        glUseProgram(shader);
+        glUniform1i(glGetUniformLocation(shader, "u_texture"), 0);
+        glUniform2i(glGetUniformLocation(shader, "u_size"), width, height);
+        glUniform1i(glGetUniformLocation(shader, "u_premultiply"), background == Main.DisplayOptions.BackgroundType.BLACK ? 1 : 0);
+        glUniform1i(glGetUniformLocation(shader, "u_keepAlpha"), background == Main.DisplayOptions.BackgroundType.NORMAL ? 1 : 0);
+        glDrawArrays(GL_TRIANGLE_FAN, 0, 4);
+        glBindVertexArray(0);
+        fbo.unbind();
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        return target;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return format;
+    }
+
+    public int getOutputWidth() {
+        return width;
+    }
+
+    public int getOutputHeight() {
+        return format == OutputFormat.YUV420P ? height*3/2 : height;
+    }
+
+    public void dispose() {
+        fbo.clearAttachments();
+        fbo.dispose();
+        target.dispose();
+    }
+
+}
@@ -3,6 +3,7 @@ package wonder.shaderdisplay.display;
 import java.nio.ByteBuffer;
 
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL45.glTextureSubImage2D;
 
 public class PixelBuffer {
 
@@ -26,6 +27,22 @@ public class PixelBuffer {
         glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
     }
 
+    /**
+     * Copies a single channel plane of bytes to a R8 texture of the plane's size.
+     *
+     * @param offset    where the plane begins in this buffer, in bytes
+     * @param rowLength distance between the beginnings of two rows of the plane, in bytes
+     */
+    public void copyPlaneToTexture(Texture texture, long offset, int rowLength) {
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, id);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, rowLength);
+        glTextureSubImage2D(texture.getId(), 0, 0, 0, texture.getWidth(), texture.getHeight(), GL_RED, GL_UNSIGNED_BYTE, offset);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
     public ByteBuffer map() {
         glBindBuffer(GL_PIXEL_UNPACK_BUFFER, id);
         glBufferData(GL_PIXEL_UNPACK_BUFFER, size, GL_DYNAMIC_DRAW);
@@ -37,4 +54,8 @@ public class PixelBuffer {
         glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
     }
 
+    public void dispose() {
+        glDeleteBuffers(id);
+    }
+
 }
@@ -2,6 +2,8 @@ package wonder.shaderdisplay.display;
 
 import wonder.shaderdisplay.controls.ShaderDebugTool;
 import wonder.shaderdisplay.scene.*;
+import wonder.shaderdisplay.uniforms.predefined.BatchLayerUniform;
+import wonder.shaderdisplay.uniforms.predefined.TileOffsetUniform;
 
 import java.util.Map;
 
@@ -16,6 +18,19 @@ public class Renderer {
 
 	private final FrameBuffer clearFBO = new FrameBuffer();
 	private final int indirectDrawCallVAO = glGenVertexArrays();
+	private int batchLayerCount, batchLayerWidth, batchLayerHeight;
+
+	/**
+	 * Draws each standard layer once per image of a batch, image i covering the horizontal slice
+	 * [i*layerWidth, (i+1)*layerWidth) of the render targets. Shaders must have been compiled with
+	 * {@link ShaderCompiler#setBatchedRendering(boolean) batched rendering}.
+	 * Pass a layer count of 0 to disable.
+	 */
+	public void setBatchLayout(int layerCount, int layerWidth, int layerHeight) {
+		this.batchLayerCount = layerCount;
+		this.batchLayerWidth = layerWidth;
+		this.batchLayerHeight = layerHeight;
+	}
 
 	public void render(Scene scene, ShaderDebugTool debugTool, boolean hasReset) {
 		if (debugTool != null)
@@ -53,10 +68,19 @@ public class Renderer {
 			if (debugTool != null)
 				debugTool.tryBindToProgram(standardLayer.compiledShaders.program);
 			standardLayer.shaderUniforms.apply(scene);
-			if (standardLayer.mesh != null)
-				standardLayer.mesh.makeDrawCall(standardLayer.vertexLayout, standardLayer.renderState.tessellationPatchSize > 0);
-			if (standardLayer.indirectDraw != null)
-				makeIndirectDrawCall(scene, standardLayer.indirectDraw, standardLayer.vertexLayout);
+			if (batchLayerCount == 0) {
+				makeDrawCalls(scene, standardLayer);
+			} else {
+				for (int i = 0; i < batchLayerCount; i++) {
+					glViewport(i * batchLayerWidth, 0, batchLayerWidth, batchLayerHeight);
+					BatchLayerUniform.setLayer(i);
+					TileOffsetUniform.setTileOffset(-i * batchLayerWidth, 0);
+					standardLayer.shaderUniforms.applyBatchLayerUniforms(scene);
+					makeDrawCalls(scene, standardLayer);
+				}
+				BatchLayerUniform.setLayer(0);
+				TileOffsetUniform.setTileOffset(0, 0);
+			}
 			scene.swapChain.endPass();
 		} else if (layer instanceof SceneComputeLayer computeLayer) {
 			glUseProgram(computeLayer.compiledShaders.program);
@@ -79,6 +103,13 @@ public class Renderer {
 		}
 	}
 
+	private void makeDrawCalls(Scene scene, SceneStandardLayer layer) {
+		if (layer.mesh != null)
+			layer.mesh.makeDrawCall(layer.vertexLayout, layer.renderState.tessellationPatchSize > 0);
+		if (layer.indirectDraw != null)
+			makeIndirectDrawCall(scene, layer.indirectDraw, layer.vertexLayout);
+	}
+
 	private void makeIndirectDrawCall(Scene scene, IndirectDrawDescription call, VertexLayout vertexLayout) {
 		glBindVertexArray(indirectDrawCallVAO);
 		scene.storageBuffers.get(call.indirectArgsBuffer.name).bindToGLBindingPoint(GL_DRAW_INDIRECT_BUFFER);
@@ -39,6 +39,44 @@ public class ShaderCompiler {
         debugResolvedShaders = enable;
     }
 
+    public static final String TILE_OFFSET_UNIFORM = "u_tileOffset";
+    private static boolean tiledRendering = false;
+
+    /**
+     * When enabled, fragment shaders see {@code gl_FragCoord} offset by the {@code u_tileOffset}
+     * built-in uniform so that a scene can be rendered tile by tile into a larger image.
+     * Must be set before compiling the scene.
+     */
+    public static void setTiledRendering(boolean enable) {
+        tiledRendering = enable;
+    }
+
+    public static final String BATCH_LAYER_UNIFORM = "u_layer";
+    private static final Pattern BATCHED_INPUT_SAMPLER_PATTERN = Pattern.compile("uniform\\s+sampler2D\\s+(\\w+)\\s*;(?=[ \\t]*//[ \\t]*input\\b)");
+    private static final String BATCHED_INPUT_SAMPLER_FUNCTIONS = """
+        vec4 dsd_texture(sampler2DArray s, vec2 uv) { return texture(s, vec3(uv, %1$s)); }
+        vec4 dsd_texture(sampler2DArray s, vec2 uv, float bias) { return texture(s, vec3(uv, %1$s), bias); }
+        vec4 dsd_textureLod(sampler2DArray s, vec2 uv, float lod) { return textureLod(s, vec3(uv, %1$s), lod); }
+        vec4 dsd_texelFetch(sampler2DArray s, ivec2 p, int lod) { return texelFetch(s, ivec3(p, %1$s), lod); }
+        ivec2 dsd_textureSize(sampler2DArray s, int lod) { return textureSize(s, lod).xy; }
+        """.formatted(BATCH_LAYER_UNIFORM);
+    private static boolean batchedRendering = false;
+
+    /**
+     * When enabled, fragment shaders render one image of a batch per draw, each image in its own
+     * slice of the render targets. {@code gl_FragCoord} is made relative to the image the same way
+     * as with tiled rendering and the {@code DSD_BATCHED} macro is defined.
+     * <p>
+     * Batched inputs are bound as a {@code sampler2DArray} indexed by the {@code u_layer} built-in
+     * uniform. So that shaders written for a single image keep working, input samplers declared as
+     * {@code sampler2D} are redeclared as arrays and their {@code texture}, {@code textureLod},
+     * {@code texelFetch} and {@code textureSize} calls are redirected to functions sampling the
+     * current layer. Must be set before compiling the scene.
+     */
+    public static void setBatchedRendering(boolean enable) {
+        batchedRendering = enable;
+    }
+
     private final Scene scene;
     private final FileCache fileCache = new FileCache();
 
@@ -204,7 +242,26 @@ public class ShaderCompiler {
         Stream<Macro> allMacros = scene == null ? Stream.empty() : scene.macros.stream();
         allMacros = Stream.concat(allMacros, Stream.of(layer.getCompilationMacros()));
         allMacros = Stream.concat(allMacros, Stream.of(new Macro("DSD"), new Macro(type.getShaderCompilerMacro())));
+        if (batchedRendering)
+            allMacros = Stream.concat(allMacros, Stream.of(new Macro("DSD_BATCHED")));
+        boolean offsetFragCoord = (tiledRendering || batchedRendering) && type == ShaderType.FRAGMENT;
+        boolean batchedFragment = batchedRendering && type == ShaderType.FRAGMENT;
+        boolean hasBatchedInputs = false;
+        if (offsetFragCoord)
+            source = source.replaceAll("\\bgl_FragCoord\\b", "(gl_FragCoord+vec4(" + TILE_OFFSET_UNIFORM + ",0.,0.))");
+        if (batchedFragment) {
+            String patchedSource = patchBatchedInputSamplers(source);
+            hasBatchedInputs = !patchedSource.equals(source);
+            source = patchedSource;
+        }
         source = addMacroDefinitions(source, allMacros);
+        // each declaration is inserted after the #version line, above the previous ones
+        if (hasBatchedInputs)
+            source = source.replaceFirst("\n", Matcher.quoteReplacement("\n" + BATCHED_INPUT_SAMPLER_FUNCTIONS));
+        if (batchedFragment && !Pattern.compile("\\buniform\\s+int\\s+" + BATCH_LAYER_UNIFORM + "\\s*;").matcher(source).find())
+            source = source.replaceFirst("\n", "\nuniform int " + BATCH_LAYER_UNIFORM + ";\n");
+        if (offsetFragCoord)
+            source = source.replaceFirst("\n", "\nuniform vec2 " + TILE_OFFSET_UNIFORM + ";\n");
 
         if (debugResolvedShaders && !sourceObject.isRawSource()) {
             File primarySourceCodeFile = sourceObject.getFileSource();
@@ -226,6 +283,17 @@ public class ShaderCompiler {
             errors.add("Compilation error in '" + sourceName + "':\n" + glGetShaderInfoLog(id));
     }
 
+    private static String patchBatchedInputSamplers(String source) {
+        Matcher declarations = BATCHED_INPUT_SAMPLER_PATTERN.matcher(source);
+        List<String> samplers = new ArrayList<>();
+        while (declarations.find())
+            samplers.add(declarations.group(1));
+        source = declarations.replaceAll("uniform sampler2DArray $1;");
+        for (String sampler : samplers)
+            source = source.replaceAll("\\b(texture|textureLod|texelFetch|textureSize)\\s*\\(\\s*" + sampler + "\\b", "dsd_$1(" + sampler);
+        return source;
+    }
+
     public static String addMacroDefinitions(String source, Stream<Macro> macros) {
         StringBuilder macroDefinitions = new StringBuilder();
         macroDefinitions.append('\n');
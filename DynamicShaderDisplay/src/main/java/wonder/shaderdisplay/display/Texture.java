@@ -4,11 +4,24 @@ import wonder.shaderdisplay.Main;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glCompressedTexSubImage2D;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL21.GL_SRGB8_ALPHA8;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL42.glTexStorage2D;
+import static org.lwjgl.opengl.GL45.glGenerateTextureMipmap;
+import static org.lwjgl.opengl.GL45.glGetTextureImage;
+import static org.lwjgl.opengl.GL45.glTextureSubImage2D;
+import static org.lwjgl.opengl.GL45.glTextureSubImage3D;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -22,19 +35,37 @@ import javax.imageio.ImageIO;
 
 public class Texture {
 	
-	private static final Map<String, Texture> cachedTextures = new HashMap<>();
+	// built-in textures are small and kept for the whole run, textures loaded from
+	// files are shared through the TextureCache
+	private static final Map<String, Texture> resourceTextures = new HashMap<>();
 	private static Texture MISSING_TEXTURE;
-	private static boolean useCache;
 	
 	private final int id;
 	private final int width, height;
 	private final boolean isDepth;
+	private final int target;
+	private final long sizeInBytes;
+	private final int levels;
 	
 	@SuppressWarnings("unused")
 	private static int aliveTextureCount = 0;
 	
+	/**
+	 * Loads a texture owned by the caller, use {@link TextureLoader#load(File, TextureOptions)} to
+	 * share textures between uniforms.
+	 */
 	public static Texture loadTexture(File file) {
-		return loadOrUseCachedTexture("file_" + file.getAbsolutePath(), () -> loadFromFiles(file));
+		return loadTexture(file, TextureOptions.DEFAULT);
+	}
+	
+	public static Texture loadTexture(File file, TextureOptions options) {
+		Main.logger.debug("Loading texture: " + file);
+		try {
+			return TextureImage.read(file).createTexture(options);
+		} catch(IOException | InvalidPathException e) {
+			Main.logger.err(e, "Could not load texture '" + file + "'");
+			return getMissingTexture();
+		}
 	}
 	
 	public static Texture loadTextureFromResources(int resourceId) {
@@ -42,29 +73,19 @@ public class Texture {
 	}
 	
 	private static Texture loadOrUseCachedTexture(String name, Supplier<Texture> cacheMissSupplier) {
-		if(cachedTextures.containsKey(name)) {
+		if(resourceTextures.containsKey(name)) {
 			Main.logger.debug("Loading texture: " + name + " (cached)");
-			return cachedTextures.get(name);
+			return resourceTextures.get(name);
 		}
 		
 		Main.logger.debug("Loading texture: " + name);
 		Texture tex = cacheMissSupplier.get();
 		
-		if(useCache && tex != MISSING_TEXTURE)
-			cachedTextures.put(name, tex);
+		if(tex != MISSING_TEXTURE)
+			resourceTextures.put(name, tex);
 		return tex;
 	}
 	
-	private static Texture loadFromFiles(File file) {
-		try {
-			BufferedImage image = ImageIO.read(file);
-			return new Texture(image);
-		} catch(IOException | InvalidPathException e) {
-			Main.logger.err(e, "Could not load texture '" + file + "'");
-			return getMissingTexture();
-		}
-	}
-
 	public static Texture getMissingTexture() {
 		if(MISSING_TEXTURE == null)
 			MISSING_TEXTURE = loadFromResources(0);
@@ -95,17 +116,91 @@ public class Texture {
 		glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT24, width, height, 0, GL_DEPTH_COMPONENT, GL_FLOAT, 0);
 		glBindTexture(GL_TEXTURE_2D, 0);
 
-		return new Texture(width, height, texId, true);
+		return new Texture(width, height, texId, true, GL_TEXTURE_2D, 4L * width * height, 1);
+	}
+	
+	/**
+	 * Creates a {@code sampler2DArray} texture, layers are filled with {@link #uploadLayer(int, int[])}.
+	 */
+	public static Texture createLayeredTexture(int width, int height, int layerCount) {
+		int texId = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D_ARRAY, texId);
+
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, width, height, layerCount, 0, GL_BGRA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+		glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+
+		aliveTextureCount++;
+		return new Texture(width, height, texId, false, GL_TEXTURE_2D_ARRAY, 4L * width * height * layerCount, 1);
+	}
+	
+	/**
+	 * Creates a texture with immutable storage for an image, its pixels are given with one of the
+	 * {@code uploadPixels} methods.
+	 *
+	 * @param mipmaps allocate every mip level, generated when pixels are uploaded, and sample them
+	 *                with trilinear filtering
+	 */
+	public static Texture createImageTexture(int width, int height, InternalTextureFormat format, boolean mipmaps) {
+		int levels = mipmaps ? 32 - Integer.numberOfLeadingZeros(Math.max(width, height)) : 1;
+		int texId = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, texId);
+
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, mipmaps ? GL_LINEAR_MIPMAP_LINEAR : GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, mipmaps ? GL_LINEAR : GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glTexStorage2D(GL_TEXTURE_2D, levels, format.glId, width, height);
+		glBindTexture(GL_TEXTURE_2D, 0);
+
+		aliveTextureCount++;
+		// the mip chain adds a third to the size of the first level
+		long sizeInBytes = (long) format.bytesPerPixel * width * height * (mipmaps ? 4 : 3) / 3;
+		return new Texture(width, height, texId, false, GL_TEXTURE_2D, sizeInBytes, levels);
 	}
 	
-	public static void setUseCache(boolean useCache) {
-		Texture.useCache = useCache;
+	/**
+	 * Creates a texture from block compressed levels, uploaded as they are.
+	 *
+	 * @param glFormat the compressed internal format of every level
+	 * @param levels   the mip chain, largest first
+	 */
+	public static Texture createCompressedTexture(int width, int height, int glFormat, ByteBuffer[] levels) {
+		boolean mipmaps = levels.length > 1;
+		int texId = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, texId);
+
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, mipmaps ? GL_LINEAR_MIPMAP_LINEAR : GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, mipmaps ? GL_LINEAR : GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glTexStorage2D(GL_TEXTURE_2D, levels.length, glFormat, width, height);
+		long sizeInBytes = 0;
+		for(int level = 0; level < levels.length; level++) {
+			int levelWidth = Math.max(1, width >> level), levelHeight = Math.max(1, height >> level);
+			glCompressedTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, levelWidth, levelHeight, glFormat, levels[level]);
+			sizeInBytes += levels[level].remaining();
+		}
+		glBindTexture(GL_TEXTURE_2D, 0);
+
+		aliveTextureCount++;
+		// the levels are already there, the texture must not generate them again
+		return new Texture(width, height, texId, false, GL_TEXTURE_2D, sizeInBytes, 1);
 	}
 
+	/**
+	 * Creates an RGBA8 texture from 8 bits pixels, as given by {@link #loadTextureData(BufferedImage, boolean)}.
+	 */
 	public Texture(int width, int height, int[] data) {
 		this.width = width;
 		this.height = height;
 		this.isDepth = false;
+		this.target = GL_TEXTURE_2D;
+		this.sizeInBytes = 4L * width * height;
+		this.levels = 1;
 		this.id = glGenTextures();
 
 		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
@@ -114,7 +209,8 @@ public class Texture {
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA32F, width, height, 0, GL_BGRA, GL_UNSIGNED_BYTE, data);
+		glTexStorage2D(GL_TEXTURE_2D, 1, GL_RGBA8, width, height);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, data);
 		glBindTexture(GL_TEXTURE_2D, 0);
 
 		aliveTextureCount++;
@@ -124,22 +220,30 @@ public class Texture {
 		this(image.getWidth(), image.getHeight(), loadTextureData(image, false));
 	}
 
-	private Texture(int width, int height, int id, boolean isDepth) {
+	private Texture(int width, int height, int id, boolean isDepth, int target, long sizeInBytes, int levels) {
 		this.id = id;
 		this.width = width;
 		this.height = height;
 		this.isDepth = isDepth;
+		this.target = target;
+		this.sizeInBytes = sizeInBytes;
+		this.levels = levels;
 	}
 
 	public enum InternalTextureFormat {
 
-		RGBA8(GL_RGBA8),
-		RGBA32F(GL_RGBA32F);
+		R8(GL_R8, 1),
+		RGBA8(GL_RGBA8, 4),
+		SRGB8_ALPHA8(GL_SRGB8_ALPHA8, 4),
+		RGBA16(GL_RGBA16, 8),
+		RGBA32F(GL_RGBA32F, 16);
 
 		final int glId;
+		final int bytesPerPixel;
 
-		InternalTextureFormat(int glId) {
+		InternalTextureFormat(int glId, int bytesPerPixel) {
 			this.glId = glId;
+			this.bytesPerPixel = bytesPerPixel;
 		}
 	}
 	
@@ -148,6 +252,9 @@ public class Texture {
 		this.height = height;
 		this.id = glGenTextures();
 		this.isDepth = false;
+		this.target = GL_TEXTURE_2D;
+		this.sizeInBytes = (long) format.bytesPerPixel * width * height;
+		this.levels = 1;
 
 		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 		glBindTexture(GL_TEXTURE_2D, id);
@@ -159,18 +266,97 @@ public class Texture {
 		glBindTexture(GL_TEXTURE_2D, 0);
 	}
 	
+	/**
+	 * Reads the pixels of an image packed as argb.
+	 *
+	 * @param flipVertically keep the rows ordered top to bottom, otherwise the first row of the
+	 *                       data is the bottom row of the image as opengl expects
+	 */
 	public static int[] loadTextureData(BufferedImage image, boolean flipVertically) {
+		int[] data = new int[image.getWidth()*image.getHeight()];
+		loadTextureData(image, data, flipVertically);
+		return data;
+	}
+	
+	/**
+	 * Reads the pixels of an image into an existing array, of at least width*height pixels.
+	 * 
+	 * @see #loadTextureData(BufferedImage, boolean)
+	 */
+	public static void loadTextureData(BufferedImage image, int[] data, boolean flipVertically) {
 		int width = image.getWidth();
 		int height = image.getHeight();
 		
-		int[] data = new int[width*height];
+		if(readRasterData(image, data, flipVertically))
+			return;
 		
 		if(flipVertically)
 			image.getRGB(0, 0, width, height, data, 0, width);
 		else
 			image.getRGB(0, 0, width, height, data, width*(height-1), -width);
+	}
+	
+	/**
+	 * Copies the samples of common image types straight from their data buffer, getRGB converts
+	 * every pixel through the color model and is several times slower. Gray samples are kept as
+	 * they are stored where getRGB would convert them from linear gray to sRGB.
+	 * 
+	 * @return false if the image type is not handled, {@code data} is left untouched
+	 */
+	private static boolean readRasterData(BufferedImage image, int[] data, boolean flipVertically) {
+		int type = image.getType();
+		WritableRaster raster = image.getRaster();
+		int width = image.getWidth();
+		int height = image.getHeight();
 		
-		return data;
+		if(type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB) {
+			if(!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel)
+					|| !(raster.getDataBuffer() instanceof DataBufferInt buffer))
+				return false;
+			int[] source = buffer.getData();
+			int scanline = sampleModel.getScanlineStride();
+			int base = buffer.getOffset() - raster.getSampleModelTranslateY()*scanline - raster.getSampleModelTranslateX();
+			int opaque = type == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+			for(int y = 0; y < height; y++) {
+				int src = base + y*scanline;
+				int dst = (flipVertically ? y : height-1-y) * width;
+				if(opaque == 0) {
+					System.arraycopy(source, src, data, dst, width);
+				} else {
+					for(int x = 0; x < width; x++)
+						data[dst+x] = source[src+x] | opaque;
+				}
+			}
+			return true;
+		}
+		
+		if(type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR || type == BufferedImage.TYPE_BYTE_GRAY) {
+			if(!(raster.getSampleModel() instanceof ComponentSampleModel sampleModel)
+					|| !(raster.getDataBuffer() instanceof DataBufferByte buffer))
+				return false;
+			byte[] source = buffer.getData();
+			int scanline = sampleModel.getScanlineStride();
+			int pixelStride = sampleModel.getPixelStride();
+			int[] bandOffsets = sampleModel.getBandOffsets();
+			int base = buffer.getOffset() - raster.getSampleModelTranslateY()*scanline - raster.getSampleModelTranslateX()*pixelStride;
+			// gray images have a single band, read as r, g and b
+			int r = bandOffsets[0];
+			int g = bandOffsets.length > 1 ? bandOffsets[1] : r;
+			int b = bandOffsets.length > 1 ? bandOffsets[2] : r;
+			boolean hasAlpha = bandOffsets.length == 4;
+			int a = hasAlpha ? bandOffsets[3] : 0;
+			for(int y = 0; y < height; y++) {
+				int src = base + y*scanline;
+				int dst = (flipVertically ? y : height-1-y) * width;
+				for(int x = 0; x < width; x++, src += pixelStride) {
+					int alpha = hasAlpha ? source[src+a] & 0xff : 0xff;
+					data[dst+x] = alpha << 24 | (source[src+r] & 0xff) << 16 | (source[src+g] & 0xff) << 8 | (source[src+b] & 0xff);
+				}
+			}
+			return true;
+		}
+		
+		return false;
 	}
 
 	public static void transposeRGBAToBGRA(int[] pixels) {
@@ -183,6 +369,77 @@ public class Texture {
 		}
 	}
 
+	/**
+	 * @return the size of the texture read at full precision with {@link #readFloatPixels(ByteBuffer)}
+	 */
+	public int getFloatPixelsSize() {
+		return width * height * (isDepth ? 1 : 4) * Float.BYTES;
+	}
+
+	/**
+	 * Reads the first mip as floats, rgba for color textures or depth only for depth textures.
+	 */
+	public void readFloatPixels(ByteBuffer destination) {
+		glGetTextureImage(id, 0, isDepth ? GL_DEPTH_COMPONENT : GL_RGBA, GL_FLOAT, destination);
+	}
+
+	/**
+	 * Replaces the first mip with pixels in the layout given by {@link #readFloatPixels(ByteBuffer)}.
+	 */
+	public void uploadFloatPixels(ByteBuffer source) {
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTextureSubImage2D(id, 0, 0, 0, width, height, isDepth ? GL_DEPTH_COMPONENT : GL_RGBA, GL_FLOAT, source);
+	}
+
+	/**
+	 * Replaces the first mip of the texture and generates the others if it has mips.
+	 *
+	 * @param argbPixels rows ordered bottom to top
+	 */
+	public void uploadPixels(int[] argbPixels) {
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTextureSubImage2D(id, 0, 0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, argbPixels);
+		updateMipmaps();
+	}
+	
+	/**
+	 * @param rgbaPixels 16 bits components, rows ordered bottom to top
+	 * @see #uploadPixels(int[])
+	 */
+	public void uploadPixels(short[] rgbaPixels) {
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTextureSubImage2D(id, 0, 0, 0, width, height, GL_RGBA, GL_UNSIGNED_SHORT, rgbaPixels);
+		updateMipmaps();
+	}
+	
+	/**
+	 * @param bgraPixels a direct buffer, rows ordered bottom to top
+	 * @see #uploadPixels(int[])
+	 */
+	public void uploadPixels(ByteBuffer bgraPixels) {
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTextureSubImage2D(id, 0, 0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, bgraPixels);
+		updateMipmaps();
+	}
+	
+	/**
+	 * Generates the mips from the first level, does nothing for textures without mips.
+	 */
+	public void updateMipmaps() {
+		if(levels > 1)
+			glGenerateTextureMipmap(id);
+	}
+
+	/**
+	 * Replaces a layer of a texture created with {@link #createLayeredTexture(int, int, int)}.
+	 *
+	 * @param pixels argb pixels, rows ordered bottom to top
+	 */
+	public void uploadLayer(int layer, int[] pixels) {
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTextureSubImage3D(id, 0, 0, 0, layer, width, height, 1, GL_BGRA, GL_UNSIGNED_BYTE, pixels);
+	}
+
 	public void dispose() {
 		glDeleteTextures(id);
 		aliveTextureCount--;
@@ -190,7 +447,7 @@ public class Texture {
 	
 	public void bind(int slot) {
 		glActiveTexture(GL_TEXTURE0 + slot);
-		glBindTexture(GL_TEXTURE_2D, id);
+		glBindTexture(target, id);
 	}
 
 	public int getId() {
@@ -204,6 +461,13 @@ public class Texture {
 	public int getHeight() {
 		return height;
 	}
+	
+	/**
+	 * @return the video memory used by the texture, estimated from its format
+	 */
+	public long getSizeInBytes() {
+		return sizeInBytes;
+	}
 
     public boolean isDepth() {
 		return isDepth;
@@ -0,0 +1,208 @@
+package wonder.shaderdisplay.display;
+
+import imgui.ImGui;
+import imgui.flag.ImGuiTableFlags;
+import wonder.shaderdisplay.Main;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Shares the textures loaded from files between the uniforms using them.
+ * <p>
+ * Texture uniforms acquire their texture when they are created and release it when their shader
+ * is recompiled or their layer disposed. Textures that are not referenced anymore stay cached
+ * until the cached textures use more video memory than the budget, they are then evicted least
+ * recently used first. A texture whose file was modified since it was loaded is loaded again,
+ * the outdated texture is disposed once no uniform uses it. In the viewer, textures are reloaded
+ * in place as soon as their file changes, see {@link TextureLoader#reload(File)}.
+ * <p>
+ * When caching is disabled every acquisition loads the file again, and textures are disposed as
+ * soon as they are released.
+ */
+public class TextureCache {
+
+    private static final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, .75f, true);
+    private static final Map<TextureHandle, CacheEntry> entriesByHandle = new IdentityHashMap<>();
+    private static boolean enabled;
+    private static long vramBudget = 1024L * 1024 * 1024;
+    private static int hits, misses, evictions, invalidations;
+
+    public static void setEnabled(boolean enabled) {
+        TextureCache.enabled = enabled;
+    }
+
+    public static void setVramBudget(long vramBudget) {
+        TextureCache.vramBudget = vramBudget;
+    }
+
+    /**
+     * Returns the cached texture of a file, or a texture created by {@code loader}. The texture
+     * must be given back with {@link #release(TextureHandle)}.
+     *
+     * @param variant tells apart textures loaded from the same file with different options
+     */
+    static TextureHandle acquire(File file, String variant, Supplier<TextureHandle> loader) {
+        String key = file.getAbsolutePath() + (variant.isEmpty() ? "" : " [" + variant + "]");
+        long lastModified = file.lastModified();
+        CacheEntry entry = enabled ? entries.get(key) : null;
+        if (entry != null && entry.lastModified != lastModified) {
+            Main.logger.debug("Texture '" + file + "' was modified, loading it again");
+            invalidations++;
+            detach(entry);
+            entry = null;
+        } else if (entry != null && entry.handle.hasFailed()) {
+            detach(entry);
+            entry = null;
+        }
+
+        if (entry != null) {
+            hits++;
+            entry.refCount++;
+            Main.logger.debug("Texture cache hit for '" + file + "', " + getStatistics());
+            return entry.handle;
+        }
+
+        misses++;
+        entry = new CacheEntry(key, loader.get(), lastModified);
+        entry.refCount = 1;
+        if (enabled)
+            entries.put(key, entry);
+        entriesByHandle.put(entry.handle, entry);
+        evictUnreferenced();
+        Main.logger.debug("Texture cache miss for '" + file + "', " + getStatistics());
+        return entry.handle;
+    }
+
+    /**
+     * Finds the textures loaded from a modified file so that they can be loaded again in place.
+     * Their new modification date is recorded so that uniforms acquiring them later do not load
+     * them again, textures that are not used anymore are disposed instead of being reloaded.
+     */
+    static List<TextureHandle> getHandlesToReload(File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        long lastModified = file.lastModified();
+        List<CacheEntry> unusedEntries = new ArrayList<>();
+        List<TextureHandle> handles = new ArrayList<>();
+        for (CacheEntry entry : entriesByHandle.values()) {
+            if (!absoluteFile.equals(entry.handle.getSourceFile()))
+                continue;
+            if (entry.refCount == 0) {
+                unusedEntries.add(entry);
+            } else {
+                entry.lastModified = lastModified;
+                handles.add(entry.handle);
+            }
+        }
+        for (CacheEntry entry : unusedEntries)
+            detach(entry);
+        return handles;
+    }
+
+    /**
+     * Gives back a texture obtained with {@link #acquire(File, String, Supplier)}, textures that were
+     * not acquired from the cache are ignored.
+     */
+    public static void release(TextureHandle handle) {
+        CacheEntry entry = entriesByHandle.get(handle);
+        if (entry == null || --entry.refCount > 0)
+            return;
+        if (entry.detached || !enabled)
+            dispose(entry);
+        else
+            evictUnreferenced();
+    }
+
+    /**
+     * Disposes unreferenced textures, least recently used first, until the cache fits in its
+     * budget. Called again when a texture finishes loading since its size was not known before.
+     */
+    static void evictUnreferenced() {
+        long residentBytes = getResidentBytes();
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (residentBytes > vramBudget && iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            if (entry.refCount > 0)
+                continue;
+            long size = entry.handle.getSizeInBytes();
+            iterator.remove();
+            dispose(entry);
+            residentBytes -= size;
+            evictions++;
+            Main.logger.debug(String.format("Evicted texture '%s' (%.1fMB) from the cache", entry.key, size / 1E6));
+        }
+    }
+
+    /**
+     * @return the video memory used by the textures loaded through the cache, including
+     *         textures still in use but not cached anymore
+     */
+    public static long getResidentBytes() {
+        long size = 0;
+        for (TextureHandle handle : entriesByHandle.keySet())
+            size += handle.getSizeInBytes();
+        return size;
+    }
+
+    public static String getStatistics() {
+        int lookups = hits + misses;
+        return String.format("%.1fMB resident of %.1fMB, %d hits, %d misses (%.0f%% hit rate), %d evictions, %d reloaded after a change",
+                getResidentBytes() / 1E6, vramBudget / 1E6, hits, misses, lookups == 0 ? 0 : 100. * hits / lookups, evictions, invalidations);
+    }
+
+    public static void renderControls() {
+        ImGui.textWrapped(getStatistics());
+        if (!enabled)
+            ImGui.textDisabled("Caching is disabled (--no-texture-cache)");
+
+        if (ImGui.beginTable("textures", 3, ImGuiTableFlags.Borders | ImGuiTableFlags.RowBg)) {
+            ImGui.tableSetupColumn("File");
+            ImGui.tableSetupColumn("Size");
+            ImGui.tableSetupColumn("Users");
+            ImGui.tableHeadersRow();
+            for (CacheEntry entry : entriesByHandle.values()) {
+                ImGui.tableNextRow();
+                ImGui.tableNextColumn();
+                ImGui.text(entry.key + (entry.handle.isLoading() ? " (loading)" : entry.detached ? " (outdated)" : ""));
+                ImGui.tableNextColumn();
+                ImGui.text(String.format("%.1fMB", entry.handle.getSizeInBytes() / 1E6));
+                ImGui.tableNextColumn();
+                ImGui.text(String.valueOf(entry.refCount));
+            }
+            ImGui.endTable();
+        }
+    }
+
+    /**
+     * Removes an entry so that it is not returned anymore, its texture is disposed once released.
+     */
+    private static void detach(CacheEntry entry) {
+        entries.remove(entry.key);
+        entry.detached = true;
+        if (entry.refCount == 0)
+            dispose(entry);
+    }
+
+    private static void dispose(CacheEntry entry) {
+        entriesByHandle.remove(entry.handle);
+        entry.handle.dispose();
+    }
+
+    private static class CacheEntry {
+
+        final String key;
+        final TextureHandle handle;
+        long lastModified;
+        int refCount;
+        boolean detached;
+
+        CacheEntry(String key, TextureHandle handle, long lastModified) {
+            this.key = key;
+            this.handle = handle;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package wonder.shaderdisplay.display;
+
+import java.io.File;
+
+/**
+ * A texture that may still be loading, see {@link TextureLoader}. Handles are only used from the
+ * render thread.
+ */
+public class TextureHandle {
+
+    private final File sourceFile;
+    private final TextureOptions options;
+    private Texture texture;
+    private Texture.InternalTextureFormat format;
+    private boolean failed;
+    private boolean disposed;
+
+    /**
+     * @param sourceFile the absolute file the texture is loaded from
+     */
+    TextureHandle(File sourceFile, TextureOptions options) {
+        this.sourceFile = sourceFile;
+        this.options = options;
+    }
+
+    /**
+     * @param texture an already loaded texture
+     */
+    public TextureHandle(Texture texture) {
+        this.sourceFile = null;
+        this.options = null;
+        this.texture = texture;
+    }
+
+    /**
+     * @return the texture, or the missing texture while it is loading or if it could not be loaded
+     */
+    public Texture get() {
+        return texture != null ? texture : Texture.getMissingTexture();
+    }
+
+    /**
+     * @return the file the texture is loaded from, or null for textures that were already loaded
+     */
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    TextureOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the texture, or null while it is loading or if it could not be loaded
+     */
+    Texture getLoadedTexture() {
+        return texture;
+    }
+
+    /**
+     * @return the format the texture was created with, or null for compressed textures
+     */
+    Texture.InternalTextureFormat getFormat() {
+        return format;
+    }
+
+    public boolean isLoading() {
+        return texture == null && !failed && !disposed;
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+
+    boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * @return the size of the texture, 0 while it is loading
+     */
+    long getSizeInBytes() {
+        return texture == null ? 0 : texture.getSizeInBytes();
+    }
+
+    void setTexture(Texture texture, Texture.InternalTextureFormat format) {
+        this.texture = texture;
+        this.format = format;
+        this.failed = false;
+    }
+
+    void setFailed() {
+        this.failed = true;
+    }
+
+    /**
+     * Disposes the texture, or drops it when it finishes loading.
+     */
+    void dispose() {
+        if (texture != null)
+            texture.dispose();
+        texture = null;
+        disposed = true;
+    }
+
+}
@@ -0,0 +1,109 @@
+package wonder.shaderdisplay.display;
+
+import wonder.shaderdisplay.serial.TextureDiskCache;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pixels of an image file ready to be uploaded, rows ordered bottom to top. Exactly one of the
+ * pixel arrays is set: packed argb for 8 bits images, rgba shorts for 16 bits images, bgra
+ * bytes mapped from the {@link TextureDiskCache}, or the blocks of a DDS or KTX2 file.
+ */
+record TextureImage(int width, int height, int[] argbPixels, short[] rgba16Pixels, ByteBuffer bgraPixels, CompressedImage compressedImage) {
+
+    /**
+     * Decodes an image, or reads it from the disk cache. May be called from any thread.
+     */
+    static TextureImage read(File file) throws IOException {
+        if (CompressedImage.isCompressedFile(file)) {
+            CompressedImage compressed = CompressedImage.read(file);
+            return new TextureImage(compressed.width(), compressed.height(), null, null, null, compressed);
+        }
+
+        TextureDiskCache.MappedTexture cached = TextureDiskCache.tryLoad(file);
+        if (cached != null)
+            return new TextureImage(cached.width(), cached.height(), null, null, cached.bgraPixels(), null);
+
+        long lastModified = file.lastModified(), length = file.length();
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("Unsupported image format");
+        int width = image.getWidth(), height = image.getHeight();
+        if (image.getColorModel().getComponentSize(0) > 8 && image.getRaster().getTransferType() == DataBuffer.TYPE_USHORT)
+            return new TextureImage(width, height, null, read16BitsPixels(image.getRaster()), null, null);
+
+        int[] pixels = Texture.loadTextureData(image, false);
+        TextureDiskCache.store(file, lastModified, length, width, height, pixels);
+        return new TextureImage(width, height, pixels, null, null, null);
+    }
+
+    /**
+     * Reads the raw samples of a 16 bits image, gray images are expanded to rgb and a missing
+     * alpha channel is made opaque.
+     */
+    private static short[] read16BitsPixels(Raster raster) {
+        int width = raster.getWidth(), height = raster.getHeight();
+        int bands = raster.getNumBands();
+        int[] samples = raster.getPixels(0, 0, width, height, (int[]) null);
+        short[] pixels = new short[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int s = (y * width + x) * bands;
+                int d = ((height - 1 - y) * width + x) * 4;
+                boolean isGray = bands <= 2;
+                pixels[d  ] = (short) samples[s];
+                pixels[d+1] = (short) samples[isGray ? s : s+1];
+                pixels[d+2] = (short) samples[isGray ? s : s+2];
+                pixels[d+3] = (short) (bands == 2 || bands == 4 ? samples[s+bands-1] : 0xffff);
+            }
+        }
+        return pixels;
+    }
+
+    boolean is16Bits() {
+        return rgba16Pixels != null;
+    }
+
+    long getSizeInBytes() {
+        if (argbPixels != null)
+            return (long) argbPixels.length * Integer.BYTES;
+        if (rgba16Pixels != null)
+            return (long) rgba16Pixels.length * Short.BYTES;
+        if (compressedImage != null)
+            return compressedImage.getSizeInBytes();
+        return bgraPixels.remaining();
+    }
+
+    /**
+     * Creates the texture and uploads the pixels directly, must be called from the render thread.
+     */
+    Texture createTexture(TextureOptions options) {
+        if (compressedImage != null)
+            return compressedImage.createTexture(options);
+        Texture texture = Texture.createImageTexture(width, height, options.getFormat(this), options.mipmaps());
+        uploadPixels(texture);
+        return texture;
+    }
+
+    /**
+     * Replaces the pixels of a texture of the same size and format, created by
+     * {@link #createTexture(TextureOptions)}. Must be called from the render thread.
+     */
+    void uploadPixels(Texture texture) {
+        if (argbPixels != null)
+            texture.uploadPixels(argbPixels);
+        else if (rgba16Pixels != null)
+            texture.uploadPixels(rgba16Pixels);
+        else if (bgraPixels != null)
+            texture.uploadPixels(bgraPixels);
+        else
+            throw new IllegalStateException("Compressed images cannot be uploaded to an existing texture");
+    }
+
+}
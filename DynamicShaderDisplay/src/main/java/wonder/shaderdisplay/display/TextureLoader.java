@@ -0,0 +1,181 @@
+package wonder.shaderdisplay.display;
+
+import wonder.shaderdisplay.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads textures from files without blocking the render thread.
+ * <p>
+ * Images are decoded by a pool of background threads, their pixels are then uploaded through a
+ * pixel buffer by {@link #uploadDecodedTextures()}, called once per frame by the render loop.
+ * Until then the {@link TextureHandle} gives the missing texture. Loading is synchronous unless
+ * enabled with {@link #setAsynchronous(boolean)}, passes rendering a single frame need every
+ * texture to be loaded before drawing.
+ * <p>
+ * Textures are loaded again in place when the {@link wonder.shaderdisplay.FileWatcher} sees their
+ * file change, see {@link #reload(File)}.
+ */
+public class TextureLoader {
+
+    /** Uploads stop for the frame once this many bytes were sent, the rest waits for the next frames */
+    private static final long UPLOAD_BUDGET_PER_FRAME = 64L * 1024 * 1024;
+
+    private static boolean asynchronous;
+    private static ExecutorService decoders;
+    private static final Queue<DecodedTexture> decodedTextures = new ConcurrentLinkedQueue<>();
+    private static PixelBuffer pixelBuffer;
+    private static int pixelBufferSize;
+
+    public static void setAsynchronous(boolean asynchronous) {
+        TextureLoader.asynchronous = asynchronous;
+    }
+
+    public static TextureHandle load(File file) {
+        return load(file, TextureOptions.DEFAULT);
+    }
+
+    /**
+     * Starts loading a texture through the {@link TextureCache}, the texture must be released
+     * with {@link TextureCache#release(TextureHandle)}.
+     */
+    public static TextureHandle load(File file, TextureOptions options) {
+        return TextureCache.acquire(file, options.getKey(),
+                () -> asynchronous ? loadAsynchronously(file, options) : loadSynchronously(file, options));
+    }
+
+    private static TextureHandle loadSynchronously(File file, TextureOptions options) {
+        Main.logger.debug("Loading texture: " + file);
+        TextureHandle handle = new TextureHandle(file.getAbsoluteFile(), options);
+        upload(decode(handle));
+        return handle;
+    }
+
+    private static TextureHandle loadAsynchronously(File file, TextureOptions options) {
+        Main.logger.debug("Loading texture: " + file + " (async)");
+        TextureHandle newHandle = new TextureHandle(file.getAbsoluteFile(), options);
+        getDecoders().execute(() -> decodedTextures.add(decode(newHandle)));
+        return newHandle;
+    }
+
+    /**
+     * Loads the textures of a modified file again. Their handles are kept so that uniforms see the
+     * new pixels without being created again, and textures whose size and format did not change
+     * are updated in place. Must be called from the render thread.
+     */
+    public static void reload(File file) {
+        for (TextureHandle handle : TextureCache.getHandlesToReload(file)) {
+            Main.logger.debug("Reloading texture: " + file);
+            if (asynchronous)
+                getDecoders().execute(() -> decodedTextures.add(decode(handle)));
+            else
+                upload(decode(handle));
+        }
+    }
+
+    /**
+     * Uploads the textures decoded since the last call, must be called from the render thread.
+     *
+     * @return true if a texture became available, the frame should be rendered again
+     */
+    public static boolean uploadDecodedTextures() {
+        boolean uploadedAny = false;
+        long uploadedBytes = 0;
+        DecodedTexture decoded;
+        while (uploadedBytes < UPLOAD_BUDGET_PER_FRAME && (decoded = decodedTextures.poll()) != null) {
+            long size = upload(decoded);
+            uploadedBytes += size;
+            uploadedAny |= size > 0;
+        }
+        if (uploadedAny)
+            TextureCache.evictUnreferenced();
+        return uploadedAny;
+    }
+
+    private static DecodedTexture decode(TextureHandle handle) {
+        try {
+            return new DecodedTexture(handle, TextureImage.read(handle.getSourceFile()));
+        } catch (IOException | RuntimeException e) {
+            Main.logger.err(e, "Could not load texture '" + handle.getSourceFile() + "'");
+            return new DecodedTexture(handle, null);
+        }
+    }
+
+    /**
+     * @return the number of bytes uploaded
+     */
+    private static long upload(DecodedTexture decoded) {
+        TextureHandle handle = decoded.handle();
+        TextureImage image = decoded.image();
+        if (handle.isDisposed())
+            return 0;
+        if (image == null) {
+            // a texture that fails to reload keeps its previous pixels
+            if (handle.getLoadedTexture() == null)
+                handle.setFailed();
+            return 0;
+        }
+
+        TextureOptions options = handle.getOptions();
+        Texture previous = handle.getLoadedTexture();
+        Texture.InternalTextureFormat format = image.compressedImage() == null ? options.getFormat(image) : null;
+        boolean updateInPlace = previous != null && format != null && format == handle.getFormat()
+                && previous.getWidth() == image.width() && previous.getHeight() == image.height();
+
+        Texture texture;
+        if (image.argbPixels() != null) {
+            int size = (int) image.getSizeInBytes();
+            if (pixelBuffer == null || pixelBufferSize < size) {
+                if (pixelBuffer != null)
+                    pixelBuffer.dispose();
+                pixelBuffer = new PixelBuffer(size);
+                pixelBufferSize = size;
+            }
+            pixelBuffer.map().asIntBuffer().put(image.argbPixels());
+            pixelBuffer.unmap();
+            texture = updateInPlace ? previous : Texture.createImageTexture(image.width(), image.height(), format, options.mipmaps());
+            pixelBuffer.copyToTexture(texture);
+            texture.updateMipmaps();
+        } else if (updateInPlace) {
+            texture = previous;
+            image.uploadPixels(texture);
+        } else {
+            // mapped and compressed pixels are read by the driver straight from the file mapping
+            texture = image.createTexture(options);
+        }
+
+        if (texture != previous) {
+            if (previous != null)
+                previous.dispose();
+            handle.setTexture(texture, format);
+        }
+        return image.getSizeInBytes();
+    }
+
+    private static ExecutorService getDecoders() {
+        if (decoders == null) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            decoders = Executors.newFixedThreadPool(threadCount, r -> {
+                Thread thread = new Thread(r, "Texture decoder #" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return decoders;
+    }
+
+    /**
+     * @param image null if the texture could not be loaded
+     */
+    private record DecodedTexture(TextureHandle handle, TextureImage image) {
+
+    }
+
+}
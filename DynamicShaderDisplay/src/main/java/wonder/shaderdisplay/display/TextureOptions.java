@@ -0,0 +1,52 @@
+package wonder.shaderdisplay.display;
+
+import wonder.shaderdisplay.Main;
+
+import java.util.Locale;
+
+/**
+ * How a texture loaded from a file is stored, given after its path in square brackets:
+ * <pre>uniform sampler2D u_texture; // path/to/image.png [srgb mipmaps]</pre>
+ *
+ * @param format the storage format, or null to pick RGBA16 for 16 bits images and RGBA8 otherwise
+ * @param mipmaps whether mips are generated and sampled with trilinear filtering
+ */
+public record TextureOptions(Texture.InternalTextureFormat format, boolean mipmaps) {
+
+    public static final TextureOptions DEFAULT = new TextureOptions(null, false);
+
+    /**
+     * @param flags space separated flags, unknown flags are ignored with a warning
+     */
+    public static TextureOptions parse(String flags) {
+        Texture.InternalTextureFormat format = null;
+        boolean mipmaps = false;
+        for (String flag : flags.trim().split("\\s+")) {
+            switch (flag.toLowerCase(Locale.ROOT)) {
+            case "" -> {}
+            case "rgba8" -> format = Texture.InternalTextureFormat.RGBA8;
+            case "srgb", "srgb8_alpha8" -> format = Texture.InternalTextureFormat.SRGB8_ALPHA8;
+            case "rgba16" -> format = Texture.InternalTextureFormat.RGBA16;
+            case "rgba32f" -> format = Texture.InternalTextureFormat.RGBA32F;
+            case "mipmaps" -> mipmaps = true;
+            default -> Main.logger.warn("Unknown texture option '" + flag + "', expected rgba8, srgb, rgba16, rgba32f or mipmaps");
+            }
+        }
+        return new TextureOptions(format, mipmaps);
+    }
+
+    Texture.InternalTextureFormat getFormat(TextureImage image) {
+        if (format != null)
+            return format;
+        return image.is16Bits() ? Texture.InternalTextureFormat.RGBA16 : Texture.InternalTextureFormat.RGBA8;
+    }
+
+    /**
+     * @return the flags giving these options, empty for the default options
+     */
+    String getKey() {
+        String formatFlag = format == null ? "" : format.name().toLowerCase(Locale.ROOT);
+        return mipmaps ? (formatFlag + " mipmaps").trim() : formatFlag;
+    }
+
+}
@@ -0,0 +1,226 @@
+package wonder.shaderdisplay.display;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_PACK_BUFFER;
+import static org.lwjgl.opengl.GL30.GL_MAP_READ_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+import static org.lwjgl.opengl.GL45.glGetTextureImage;
+
+/**
+ * Reads textures back to the CPU without stalling the GPU pipeline.
+ * <p>
+ * Each read is issued into one of a ring of persistently mapped pixel-pack buffers and guarded
+ * by a fence, frame f can be read back while frames f+1..f+N render. Once a read completes the
+ * slot is handed to the completion handler, which must {@link ReadbackSlot#release() release} it
+ * when its pixels are not needed anymore, possibly from another thread.
+ * <p>
+ * Apart from {@link ReadbackSlot#release()}, all methods must be called from the GL thread.
+ */
+public class TextureReadbackRing {
+
+    public enum ReadbackFormat {
+
+        BGRA(GL_BGRA, 4),
+        RED(GL_RED, 1);
+
+        final int glFormat;
+        public final int bytesPerPixel;
+
+        ReadbackFormat(int glFormat, int bytesPerPixel) {
+            this.glFormat = glFormat;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    private static final int MAPPING_FLAGS = GL_MAP_READ_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+    private final int width, height;
+    private final ReadbackFormat format;
+    private final int sizeInBytes;
+    private final ReadbackSlot[] slots;
+    private final BlockingQueue<ReadbackSlot> freeSlots;
+    private final Queue<ReadbackSlot> pendingSlots = new ArrayDeque<>();
+    private final Consumer<ReadbackSlot> completionHandler;
+
+    private long fenceWaitNanos;
+
+    public TextureReadbackRing(int slotCount, int width, int height, ReadbackFormat format, Consumer<ReadbackSlot> completionHandler) {
+        if (slotCount <= 0)
+            throw new IllegalArgumentException("A readback ring needs at least one slot");
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.sizeInBytes = width * height * format.bytesPerPixel;
+        this.completionHandler = completionHandler;
+        this.slots = new ReadbackSlot[slotCount];
+        this.freeSlots = new ArrayBlockingQueue<>(slotCount);
+
+        for (int i = 0; i < slotCount; i++) {
+            int pbo = glGenBuffers();
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, pbo);
+            glBufferStorage(GL_PIXEL_PACK_BUFFER, sizeInBytes, MAPPING_FLAGS);
+            ByteBuffer mappedData = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, sizeInBytes, MAPPING_FLAGS);
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            if (mappedData == null)
+                throw new IllegalStateException("Could not map a readback buffer");
+            slots[i] = new ReadbackSlot(pbo, mappedData.order(ByteOrder.LITTLE_ENDIAN));
+            freeSlots.add(slots[i]);
+        }
+    }
+
+    /**
+     * Issues an asynchronous read of the first mip of {@code texture}, which must match the ring's
+     * dimensions. If every slot is in use this waits for the oldest read to complete, or for a
+     * consumer to release its slot.
+     */
+    public void requestRead(Texture texture, int tag) {
+        if (texture.getWidth() != width || texture.getHeight() != height)
+            throw new IllegalArgumentException("Invalid texture size, got " + texture.getWidth() + "x" + texture.getHeight() + " expected " + width + "x" + height);
+
+        ReadbackSlot slot = acquireFreeSlot();
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pbo);
+        glGetTextureImage(texture.getId(), 0, format.glFormat, GL_UNSIGNED_BYTE, sizeInBytes, 0L);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.tag = tag;
+        pendingSlots.add(slot);
+
+        dispatchCompletedReads(false);
+    }
+
+    /**
+     * Waits for every pending read and hands them to the completion handler.
+     */
+    public void flush() {
+        dispatchCompletedReads(true);
+    }
+
+    public int getPendingReadsCount() {
+        return pendingSlots.size();
+    }
+
+    /**
+     * @return the total time spent blocking on fences, in nanoseconds
+     */
+    public long getFenceWaitNanos() {
+        return fenceWaitNanos;
+    }
+
+    public int getFrameSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public void dispose() {
+        for (ReadbackSlot slot : slots) {
+            if (slot.fence != 0)
+                glDeleteSync(slot.fence);
+            glDeleteBuffers(slot.pbo);
+        }
+        pendingSlots.clear();
+        freeSlots.clear();
+    }
+
+    private ReadbackSlot acquireFreeSlot() {
+        while (true) {
+            ReadbackSlot slot = freeSlots.poll();
+            if (slot != null)
+                return slot;
+            if (!pendingSlots.isEmpty()) {
+                completeOldestRead();
+                continue;
+            }
+            // every slot is held by a consumer
+            long waitBegin = System.nanoTime();
+            try {
+                slot = freeSlots.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted while waiting for a readback slot", e);
+            }
+            fenceWaitNanos += System.nanoTime() - waitBegin;
+            return slot;
+        }
+    }
+
+    private void dispatchCompletedReads(boolean waitForAll) {
+        while (!pendingSlots.isEmpty()) {
+            if (!waitForAll && !isSignaled(pendingSlots.peek().fence))
+                return;
+            completeOldestRead();
+        }
+    }
+
+    private void completeOldestRead() {
+        ReadbackSlot slot = pendingSlots.remove();
+        long waitBegin = System.nanoTime();
+        while (true) {
+            int status = glClientWaitSync(slot.fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000_000L);
+            if (status == GL_WAIT_FAILED)
+                throw new IllegalStateException("Could not wait for a texture readback");
+            if (status != GL_TIMEOUT_EXPIRED)
+                break;
+        }
+        fenceWaitNanos += System.nanoTime() - waitBegin;
+        glDeleteSync(slot.fence);
+        slot.fence = 0;
+        completionHandler.accept(slot);
+    }
+
+    private static boolean isSignaled(long fence) {
+        int status = glClientWaitSync(fence, 0, 0);
+        return status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED;
+    }
+
+    public class ReadbackSlot {
+
+        private final int pbo;
+        private final ByteBuffer mappedData;
+        private long fence;
+        private int tag;
+
+        private ReadbackSlot(int pbo, ByteBuffer mappedData) {
+            this.pbo = pbo;
+            this.mappedData = mappedData;
+        }
+
+        /**
+         * @return the read pixels, rows are tightly packed and ordered bottom to top
+         */
+        public ByteBuffer getPixels() {
+            return mappedData.rewind();
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Gives the slot back to the ring, its pixels must not be accessed afterward.
+         * May be called from any thread.
+         */
+        public void release() {
+            freeSlots.add(this);
+        }
+
+    }
+
+}
@@ -41,20 +41,25 @@ public class TexturesSwapChain {
 			throw new IllegalArgumentException("Invalid buffer size, got " + outBuffer.length + " expected " + texture.getWidth() * texture.getHeight());
 		}
 		glGetTextureImage(texture.getId(), 0, GL_BGRA, GL_UNSIGNED_BYTE, outBuffer);
+		applyBackground(outBuffer, background);
+		return outBuffer;
+	}
+
+	public static void applyBackground(int[] pixels, BackgroundType background) {
 		switch(background) {
 		case NORMAL:
 			break;
 		case NO_ALPHA:
-			for(int i = 0; i < outBuffer.length; i++)
-				outBuffer[i] |= 0xff << 24;
+			for(int i = 0; i < pixels.length; i++)
+				pixels[i] |= 0xff << 24;
 			break;
 		case BLACK:
-			for(int i = 0; i < outBuffer.length; i++) {
-				float r = ((outBuffer[i] >> 0) & 0xff) / (float)0xff;
-				float g = ((outBuffer[i] >> 8) & 0xff) / (float)0xff;
-				float b = ((outBuffer[i] >> 16) & 0xff) / (float)0xff;
-				float a = ((outBuffer[i] >> 24) & 0xff) / (float)0xff;
-				outBuffer[i] =
+			for(int i = 0; i < pixels.length; i++) {
+				float r = ((pixels[i] >> 0) & 0xff) / (float)0xff;
+				float g = ((pixels[i] >> 8) & 0xff) / (float)0xff;
+				float b = ((pixels[i] >> 16) & 0xff) / (float)0xff;
+				float a = ((pixels[i] >> 24) & 0xff) / (float)0xff;
+				pixels[i] =
 						((int)(r*a*0xff) << 0) |
 						((int)(g*a*0xff) << 8) |
 						((int)(b*a*0xff) << 16) |
@@ -62,7 +67,6 @@ public class TexturesSwapChain {
 			}
 			break;
 		}
-		return outBuffer;
 	}
 
 	public void resizeTextures(int screenWidth, int screenHeight) {
@@ -93,6 +97,18 @@ public class TexturesSwapChain {
 		}
 	}
 
+	/**
+	 * @return the video memory used by the render targets and their read/write copies
+	 */
+	public long getSizeInBytes() {
+		long size = 0;
+		for (SwapTexture swap : textures.values()) {
+			int bytesPerPixel = swap.base.type == SceneRenderTarget.RenderTargetType.DEPTH ? 4 : 16;
+			size += 2L * bytesPerPixel * swap.mainTexture.getWidth() * swap.mainTexture.getHeight();
+		}
+		return size;
+	}
+
 	public void dispose() {
 		fbo.clearAttachments();
 		for (SwapTexture swap : textures.values()) {
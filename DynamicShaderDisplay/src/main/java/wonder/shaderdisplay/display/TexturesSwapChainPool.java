@@ -0,0 +1,88 @@
+package wonder.shaderdisplay.display;
+
+import wonder.shaderdisplay.scene.SceneRenderTarget;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.glClearColor;
+import static org.lwjgl.opengl.GL11.glClearDepth;
+
+/**
+ * Keeps swap chains of previously used resolutions alive so that rendering a batch of images of
+ * mixed sizes does not reallocate every render target for each image.
+ * <p>
+ * Swap chains are evicted least recently used first, when more than {@code maxSwapChains} are
+ * kept or when their combined size goes over the video memory budget. The swap chain that was
+ * just acquired is never evicted, even if it alone is over budget.
+ */
+public class TexturesSwapChainPool {
+
+    private final List<SceneRenderTarget> renderTargets;
+    private final int maxSwapChains;
+    private final long vramBudget;
+    private final LinkedHashMap<Long, TexturesSwapChain> swapChains = new LinkedHashMap<>(16, .75f, true);
+    private long usedVram;
+    private int reuseCount, allocationCount;
+
+    public TexturesSwapChainPool(List<SceneRenderTarget> renderTargets, int maxSwapChains, long vramBudget) {
+        if (maxSwapChains <= 0)
+            throw new IllegalArgumentException("At least one swap chain must be kept");
+        this.renderTargets = renderTargets;
+        this.maxSwapChains = maxSwapChains;
+        this.vramBudget = vramBudget;
+    }
+
+    /**
+     * Returns a swap chain sized for the given resolution, reused swap chains are cleared as a new
+     * one would be. The swap chain stays owned by the pool and must not be disposed by the caller.
+     */
+    public TexturesSwapChain acquire(int width, int height) {
+        long key = (long) width << 32 | (height & 0xffffffffL);
+        TexturesSwapChain swapChain = swapChains.get(key);
+        if (swapChain != null) {
+            reuseCount++;
+            glClearColor(0, 0, 0, 0);
+            glClearDepth(1);
+            swapChain.clearTextures();
+            return swapChain;
+        }
+
+        allocationCount++;
+        swapChain = new TexturesSwapChain(renderTargets, width, height);
+        swapChains.put(key, swapChain);
+        usedVram += swapChain.getSizeInBytes();
+        evict(swapChain);
+        return swapChain;
+    }
+
+    public void dispose() {
+        for (TexturesSwapChain swapChain : swapChains.values())
+            swapChain.dispose();
+        swapChains.clear();
+        usedVram = 0;
+    }
+
+    public int getReuseCount() {
+        return reuseCount;
+    }
+
+    public int getAllocationCount() {
+        return allocationCount;
+    }
+
+    private void evict(TexturesSwapChain keep) {
+        Iterator<Map.Entry<Long, TexturesSwapChain>> iterator = swapChains.entrySet().iterator();
+        while (iterator.hasNext() && (swapChains.size() > maxSwapChains || usedVram > vramBudget)) {
+            TexturesSwapChain swapChain = iterator.next().getValue();
+            if (swapChain == keep)
+                continue;
+            usedVram -= swapChain.getSizeInBytes();
+            swapChain.dispose();
+            iterator.remove();
+        }
+    }
+
+}
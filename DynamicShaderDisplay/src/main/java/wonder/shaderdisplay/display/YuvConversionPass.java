@@ -0,0 +1,109 @@
+package wonder.shaderdisplay.display;
+
+import wonder.shaderdisplay.serial.Resources;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.GL_READ_ONLY;
+import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.glProgramUniform1i;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+import static org.lwjgl.opengl.GL45.glBindTextureUnit;
+
+/**
+ * Converts decoded video frames from planar YUV 4:2:0 to rgb on the GPU, so that the only work
+ * left to the CPU is copying the planes.
+ * <p>
+ * The planes are uploaded from a {@link PixelBuffer} to single channel textures and converted by
+ * a compute shader writing into the frame's RGBA8 texture. Conversions happen while scenes are
+ * rendered, when an input texture is sampled: the pass uses the last texture and image units and
+ * restores the current program so that the layer being rendered is left untouched.
+ */
+public class YuvConversionPass {
+
+    private static final int WORKGROUP_SIZE = 16;
+
+    private static int shader;
+    private static int firstTextureUnit, imageUnit;
+
+    private final int width, height;
+    private final int chromaWidth, chromaHeight;
+    private final boolean fullRange;
+    private final Texture[] planes;
+
+    /**
+     * @param fullRange whether values span the whole [0,255] range (jpeg style), otherwise luma
+     *                  spans [16,235] and chroma [16,240]
+     */
+    public YuvConversionPass(int width, int height, boolean fullRange) {
+        if (shader == 0)
+            shader = buildShader();
+
+        this.width = width;
+        this.height = height;
+        this.chromaWidth = (width + 1) / 2;
+        this.chromaHeight = (height + 1) / 2;
+        this.fullRange = fullRange;
+        this.planes = new Texture[] {
+                new Texture(width, height, Texture.InternalTextureFormat.R8),
+                new Texture(chromaWidth, chromaHeight, Texture.InternalTextureFormat.R8),
+                new Texture(chromaWidth, chromaHeight, Texture.InternalTextureFormat.R8),
+        };
+    }
+
+    private static int buildShader() {
+        firstTextureUnit = glGetInteger(GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS) - 3;
+        imageUnit = glGetInteger(GL_MAX_IMAGE_UNITS) - 1;
+        int shader = glCreateProgram();
+        int compute = ShaderCompiler.buildRawShader(Resources.readResource("/yuv_conversion.cs"), GL_COMPUTE_SHADER);
+        glAttachShader(shader, compute);
+        glLinkProgram(shader);
+        if (glGetProgrami(shader, GL_LINK_STATUS) == GL_FALSE)
+            throw new RuntimeException("Failed to build the yuv conversion shader: " + glGetProgramInfoLog(shader));
+        ShaderCompiler.deleteShaders(compute);
+        glProgramUniform1i(shader, glGetUniformLocation(shader, "u_y"), firstTextureUnit);
+        glProgramUniform1i(shader, glGetUniformLocation(shader, "u_u"), firstTextureUnit + 1);
+        glProgramUniform1i(shader, glGetUniformLocation(shader, "u_v"), firstTextureUnit + 2);
+        glProgramUniform1i(shader, glGetUniformLocation(shader, "u_target"), imageUnit);
+        return shader;
+    }
+
+    /**
+     * Converts a frame into {@code target}, an RGBA8 texture of the frame's size.
+     *
+     * @param source    holds the Y, U and V planes one after the other, rows ordered top to bottom
+     * @param lineSizes the distance between rows of each plane, in bytes
+     */
+    public void convert(PixelBuffer source, int[] lineSizes, Texture target) {
+        if (target.getWidth() != width || target.getHeight() != height)
+            throw new IllegalArgumentException("Invalid texture size, got " + target.getWidth() + "x" + target.getHeight() + " expected " + width + "x" + height);
+
+        long offset = 0;
+        for (int p = 0; p < planes.length; p++) {
+            source.copyPlaneToTexture(planes[p], offset, lineSizes[p]);
+            offset += (long) lineSizes[p] * planes[p].getHeight();
+            glBindTextureUnit(firstTextureUnit + p, planes[p].getId());
+        }
+        glBindImageTexture(imageUnit, target.getId(), 0, false, 0, GL_WRITE_ONLY, GL_RGBA8);
+
+        int previousProgram = glGetInteger(GL_CURRENT_PROGRAM);
+        glUseProgram(shader);
+        glUniform2i(glGetUniformLocation(shader, "u_size"), width, height);
+        glUniform1i(glGetUniformLocation(shader, "u_fullRange"), fullRange ? 1 : 0);
+        glDispatchCompute((width + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE, (height + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE, 1);
+        glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT);
+        glUseProgram(previousProgram);
+
+        for (int p = 0; p < planes.length; p++)
+            glBindTextureUnit(firstTextureUnit + p, 0);
+        glBindImageTexture(imageUnit, 0, 0, false, 0, GL_READ_ONLY, GL_RGBA8);
+    }
+
+    public void dispose() {
+        for (Texture plane : planes)
+            plane.dispose();
+    }
+
+}
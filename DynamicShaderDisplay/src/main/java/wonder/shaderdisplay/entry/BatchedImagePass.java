@@ -0,0 +1,165 @@
+package wonder.shaderdisplay.entry;
+
+import fr.wonder.commons.files.FilesUtils;
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.Time;
+import wonder.shaderdisplay.display.Renderer;
+import wonder.shaderdisplay.display.TexturesSwapChainPool;
+import wonder.shaderdisplay.scene.*;
+import wonder.shaderdisplay.serial.BatchedInputImages;
+import wonder.shaderdisplay.serial.DecodedImage;
+import wonder.shaderdisplay.serial.ExportPipeline;
+import wonder.shaderdisplay.serial.ImageWriterPool;
+import wonder.shaderdisplay.serial.InputFiles;
+import wonder.shaderdisplay.uniforms.predefined.ResolutionUniform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL11.GL_MAX_TEXTURE_SIZE;
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL30.GL_MAX_ARRAY_TEXTURE_LAYERS;
+
+/**
+ * Applies the scene to consecutive input images of the same size in batches, to amortize the
+ * per-image cost of preparing render targets, applying uniforms and reading results back.
+ * <p>
+ * The images of a batch are the layers of the input {@code sampler2DArray}, their results are laid
+ * side by side in the render targets and read back in a single transfer. Scene shaders must have
+ * been compiled with {@link wonder.shaderdisplay.display.ShaderCompiler#setBatchedRendering(boolean)
+ * batched rendering}, and the scene must not read render targets since images share them.
+ */
+class BatchedImagePass {
+
+    private final Renderer renderer;
+    private final Scene scene;
+    private final Main.ImagePassOptions options;
+    private final TexturesSwapChainPool swapChains;
+    private final ImageWriterPool writerPool;
+    private final ExportPipeline.Stage renderStage, readbackStage;
+    private final BatchedInputImages inputs = new BatchedInputImages();
+    private final int maxLayers, maxTextureSize;
+
+    private final List<File> outputs = new ArrayList<>();
+    private final List<Consumer<File>> writeCallbacks = new ArrayList<>();
+    private int inputWidth, inputHeight;
+    private int outputWidth, outputHeight;
+    private int capacity;
+
+    BatchedImagePass(Renderer renderer, Scene scene, Main.ImagePassOptions options, TexturesSwapChainPool swapChains,
+                     ImageWriterPool writerPool, ExportPipeline.Stage renderStage, ExportPipeline.Stage readbackStage) {
+        this.renderer = renderer;
+        this.scene = scene;
+        this.options = options;
+        this.swapChains = swapChains;
+        this.writerPool = writerPool;
+        this.renderStage = renderStage;
+        this.readbackStage = readbackStage;
+        this.maxLayers = glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS);
+        this.maxTextureSize = glGetInteger(GL_MAX_TEXTURE_SIZE);
+        if (InputFiles.singleton != null)
+            InputFiles.singleton.dispose();
+        InputFiles.singleton = new InputFiles(inputs);
+    }
+
+    /**
+     * @return why the scene cannot be rendered in batches, or null if it can
+     */
+    static String getBatchingIssue(Scene scene) {
+        for (SceneRenderTarget renderTarget : scene.renderTargets) {
+            if (!renderTarget.screenRelative || renderTarget.width != 1 || renderTarget.height != 1)
+                return "render target '" + renderTarget.name + "' is not the size of the screen";
+        }
+        for (SceneLayer layer : scene.layers) {
+            if (layer instanceof SceneComputeLayer)
+                return "layer '" + layer.getDisplayName() + "' is a compute layer";
+            if (layer instanceof SceneStandardLayer standardLayer && !standardLayer.shaderUniforms.getSampledRenderTargets().isEmpty())
+                return "layer '" + layer.getDisplayName() + "' samples render targets";
+        }
+        return null;
+    }
+
+    /**
+     * Uploads an image to the current batch, rendering the batch first if the image does not fit
+     * in it. The decoded pixels can be released once this returns.
+     *
+     * @param onWritten given to the {@link ImageWriterPool} writing the output, may be null
+     */
+    void add(DecodedImage image, File outputFile, Consumer<File> onWritten) {
+        if (!outputs.isEmpty() && (image.width() != inputWidth || image.height() != inputHeight))
+            flush();
+
+        long uploadBegin = System.nanoTime();
+        if (outputs.isEmpty()) {
+            inputWidth = image.width();
+            inputHeight = image.height();
+            outputWidth = options.displayOptions.sizeToInput ? inputWidth : options.displayOptions.winWidth;
+            outputHeight = options.displayOptions.sizeToInput ? inputHeight : options.displayOptions.winHeight;
+            capacity = Math.max(1, Math.min(options.batchSize, Math.min(maxLayers, maxTextureSize / outputWidth)));
+            inputs.beginBatch(inputWidth, inputHeight, capacity);
+        }
+        inputs.setLayer(outputs.size(), image);
+        outputs.add(outputFile);
+        writeCallbacks.add(onWritten);
+        renderStage.recordTotal(System.nanoTime() - uploadBegin, 0);
+
+        if (outputs.size() == capacity)
+            flush();
+    }
+
+    /**
+     * Renders the pending images and queues their results to the writers.
+     */
+    void flush() {
+        int layers = outputs.size();
+        if (layers == 0)
+            return;
+
+        long renderBegin = System.nanoTime();
+        scene.useSwapChain(swapChains.acquire(outputWidth * layers, outputHeight));
+        ResolutionUniform.updateViewportSize(outputWidth, outputHeight);
+        renderer.setBatchLayout(layers, outputWidth, outputHeight);
+
+        boolean isInitialFrame = true;
+        if (options.runFromFrame != Main.ImagePassOptions.NO_RUN_FROM_FRAME) {
+            for (int f = options.runFromFrame; f < options.screenshotFrame; f++) {
+                Time.setFrame(f);
+                renderer.render(scene, null, isInitialFrame);
+                isInitialFrame = false;
+            }
+        }
+        Time.setFrame(options.screenshotFrame);
+        renderer.render(scene, null, isInitialFrame);
+        renderer.setBatchLayout(0, 0, 0);
+        renderStage.recordTotal(System.nanoTime() - renderBegin, layers);
+
+        long readbackBegin = System.nanoTime();
+        int stripWidth = outputWidth * layers;
+        int[] strip = scene.swapChain.readColorAttachment(SceneRenderTarget.DEFAULT_RT.name, null, options.displayOptions.background);
+        List<int[]> images = new ArrayList<>(layers);
+        for (int layer = 0; layer < layers; layer++) {
+            int[] pixels = new int[outputWidth * outputHeight];
+            for (int row = 0; row < outputHeight; row++)
+                System.arraycopy(strip, row * stripWidth + layer * outputWidth, pixels, row * outputWidth, outputWidth);
+            images.add(pixels);
+        }
+        readbackStage.recordTotal(System.nanoTime() - readbackBegin, layers);
+
+        for (int layer = 0; layer < layers; layer++) {
+            File outputFile = outputs.get(layer);
+            String imageFormat = FilesUtils.getFileExtension(outputFile).toUpperCase();
+            writerPool.submit(outputFile, imageFormat, outputWidth, outputHeight, images.get(layer), writeCallbacks.get(layer));
+        }
+        outputs.clear();
+        writeCallbacks.clear();
+    }
+
+    void close() {
+        flush();
+        InputFiles.singleton.dispose();
+        InputFiles.singleton = null;
+    }
+
+}
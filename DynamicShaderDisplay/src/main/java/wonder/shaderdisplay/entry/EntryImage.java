@@ -3,21 +3,45 @@ package wonder.shaderdisplay.entry;
 import fr.wonder.commons.exceptions.UnreachableException;
 import fr.wonder.commons.files.FilesUtils;
 import wonder.shaderdisplay.display.GLWindow;
+import wonder.shaderdisplay.display.ShaderCompiler;
+import wonder.shaderdisplay.display.TexturesSwapChainPool;
 import wonder.shaderdisplay.display.WindowBlit;
+import wonder.shaderdisplay.serial.DecodedImage;
+import wonder.shaderdisplay.serial.ExportPipeline;
+import wonder.shaderdisplay.serial.ImagePrefetcher;
+import wonder.shaderdisplay.serial.ImageWriterPool;
 import wonder.shaderdisplay.serial.InputFiles;
+import wonder.shaderdisplay.serial.MemoryBudget;
+import wonder.shaderdisplay.serial.OutputCache;
+import wonder.shaderdisplay.serial.PngEncoder;
+import wonder.shaderdisplay.serial.SpoolDirectory;
+import wonder.shaderdisplay.FileWatcher;
 import wonder.shaderdisplay.Main;
 import wonder.shaderdisplay.Time;
 import wonder.shaderdisplay.scene.Scene;
+import wonder.shaderdisplay.scene.SceneParser;
 import wonder.shaderdisplay.scene.SceneRenderTarget;
+import wonder.shaderdisplay.uniforms.UniformApplicationContext;
 import wonder.shaderdisplay.uniforms.predefined.ResolutionUniform;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL11.GL_MAX_TEXTURE_SIZE;
+import static org.lwjgl.opengl.GL11.glGetInteger;
 
 public class EntryImage extends SetupUtils {
 
+    /** How often the watched directory is checked for new images when there is nothing to render */
+    private static final long SPOOL_POLL_INTERVAL_MS = 50;
+
     protected static void loadCommonOptions(Main.ImagePassOptions options) throws BadInitException {
         loadCommonOptions(options.displayOptions, null);
     }
@@ -29,9 +53,11 @@ public class EntryImage extends SetupUtils {
         Scene scene;
         fragment = getMainSceneFile(fragment);
 
-        int outputWidth = options.displayOptions.winWidth;
-        int outputHeight = options.displayOptions.winHeight;
+        int outputWidth, outputHeight;
+        int tileWidth = 0, tileHeight = 0;
         File outputFile = options.noOutput ? null : new File(options.outputPath);
+        OutputCache outputCache = null;
+        String cacheKey = null;
 
         try {
             if(outputFile != null && outputFile.exists() && !options.overwriteExistingFiles)
@@ -39,23 +65,74 @@ public class EntryImage extends SetupUtils {
 
             InputFiles.singleton = new InputFiles(rawInputFiles, false);
             InputFiles.singleton.startReadingFiles();
-            if (options.displayOptions.sizeToInput) {
-                int[] resolution = InputFiles.singleton.getFirstInputFileResolution();
-                outputWidth = resolution[0];
-                outputHeight = resolution[1];
-            }
 
             loadCommonOptions(options.displayOptions, InputFiles.singleton);
             Time.setFps(options.framerate);
+            outputWidth = options.displayOptions.winWidth;
+            outputHeight = options.displayOptions.winHeight;
+
+            if (options.tileSize < 0)
+                throw new BadInitException("The tile size must be >0");
+            if (options.pngCompressionLevel < 0 || options.pngCompressionLevel > 9)
+                throw new BadInitException("The png compression level must be between 0 and 9");
+            boolean tiled = options.tileSize > 0 || Math.max(outputWidth, outputHeight) > TiledScreenshot.AUTO_TILING_SIZE;
+            if (tiled) {
+                if (outputFile != null && !"png".equalsIgnoreCase(FilesUtils.getFileExtension(outputFile)))
+                    throw new BadInitException("Tiled screenshots can only be written as png files");
+                if (options.openViewer)
+                    throw new BadInitException("Tiled screenshots cannot be opened in the viewer");
+                int tileSize = options.tileSize > 0 ? options.tileSize : TiledScreenshot.DEFAULT_TILE_SIZE;
+                tileWidth = Math.min(tileSize, outputWidth);
+                tileHeight = Math.min(tileSize, outputHeight);
+                // the window is never shown, it only needs to hold a tile
+                options.displayOptions.winWidth = tileWidth;
+                options.displayOptions.winHeight = tileHeight;
+                ShaderCompiler.setTiledRendering(true);
+            }
 
             display = createDisplay(options.displayOptions, options.openViewer, false);
+            if (tiled) {
+                int maxTextureSize = glGetInteger(GL_MAX_TEXTURE_SIZE);
+                tileWidth = Math.min(tileWidth, maxTextureSize);
+                tileHeight = Math.min(tileHeight, maxTextureSize);
+            }
             scene = createScene(options.displayOptions, fragment);
-        } catch (BadInitException e) {
+
+            if (options.cacheDirectory != null && outputFile != null && !options.openViewer) {
+                if (options.cacheSize <= 0)
+                    throw new BadInitException("The cache size must be >0");
+                outputCache = new OutputCache(options.cacheDirectory, options.cacheSize * 1024L * 1024L);
+                // the window may only hold a tile, the key is made with the size of the whole image
+                cacheKey = OutputCache.getKey(hashSceneState(scene, options, outputWidth, outputHeight), rawInputFiles);
+                if (outputCache.tryRestore(cacheKey, outputFile))
+                    return;
+            }
+        } catch (BadInitException | IOException e) {
             Main.logger.err(e.getMessage());
             Main.exitWithError();
             throw new UnreachableException();
         }
 
+        if (tileWidth > 0) {
+            scene.prepareSwapChain(tileWidth, tileHeight);
+            ResolutionUniform.updateViewportSize(outputWidth, outputHeight);
+            if (scene.renderTargets.size() > 2)
+                Main.logger.warn("The scene uses render targets, effects sampling them at other pixels may show seams between tiles");
+            if (options.noOutput) {
+                Main.logger.info("Nothing to render, --no-output is specified");
+                return;
+            }
+            try {
+                TiledScreenshot.render(display.renderer, scene, options, outputFile, outputWidth, outputHeight, tileWidth, tileHeight);
+                Main.logger.info("Wrote '" + outputFile.getPath() + "'");
+                if (outputCache != null)
+                    outputCache.store(cacheKey, outputFile);
+            } catch (IOException e) {
+                Main.logger.err("Could not write file '" + outputFile.getPath() + "': " + e.getMessage());
+            }
+            return;
+        }
+
         scene.prepareSwapChain(outputWidth, outputHeight);
         BufferedImage frameImage = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_3BYTE_BGR);
         int[] frameCpuBuffer = new int[outputWidth*outputHeight];
@@ -81,8 +158,13 @@ public class EntryImage extends SetupUtils {
         } else {
             try {
                 String imageFormat = FilesUtils.getFileExtension(outputFile).toUpperCase();
-                ImageIO.write(frameImage, imageFormat, outputFile);
+                if ("PNG".equals(imageFormat))
+                    new PngEncoder(outputWidth, outputHeight, false, options.pngCompressionLevel).write(outputFile, frameCpuBuffer, outputWidth*(outputHeight-1), -outputWidth);
+                else
+                    ImageIO.write(frameImage, imageFormat, outputFile);
                 Main.logger.info("Wrote '" + outputFile.getPath() + "'");
+                if (outputCache != null)
+                    outputCache.store(cacheKey, outputFile);
             } catch (IOException e) {
                 Main.logger.err("Could not write file '" + outputFile.getPath() + "': " + e.getMessage());
             }
@@ -102,58 +184,194 @@ public class EntryImage extends SetupUtils {
         Display display;
         Scene scene;
         fragment = getMainSceneFile(fragment);
+        SpoolDirectory spoolDirectory = null;
+        FileWatcher fileWatcher = null;
+        OutputCache outputCache = null;
+        String sceneHash = null;
 
         try {
             loadCommonOptions(options);
+            if (options.prefetchCount <= 0 || options.ioThreads <= 0)
+                throw new BadInitException("At least one prefetched image and one io thread are required");
+            if (options.memoryBudget <= 0)
+                throw new BadInitException("The memory budget must be >0");
+            if (options.swapChainPoolSize <= 0 || options.vramBudget <= 0)
+                throw new BadInitException("The swap chains count and video memory budget must be >0");
+            if (options.batchSize <= 0)
+                throw new BadInitException("The batch size must be >0");
+            if (options.pngCompressionLevel < 0 || options.pngCompressionLevel > 9)
+                throw new BadInitException("The png compression level must be between 0 and 9");
 
-            if(inputFiles.length > 1 && !options.outputPath.contains("{}") && !new File(options.outputPath).isDirectory())
+            if (inputFiles.length == 0 && options.watchDirectory == null)
+                throw new BadInitException("No input image given, pass image files or a directory to watch with --watch");
+            boolean multipleInputs = inputFiles.length > 1 || options.watchDirectory != null;
+            if(multipleInputs && !options.outputPath.contains("{}") && !new File(options.outputPath).isDirectory())
                 throw new BadInitException("Output path is not a directory and multiple input files given, use -o <directory>");
+            if (options.watchDirectory != null) {
+                if (!options.watchDirectory.isDirectory())
+                    throw new BadInitException("'" + options.watchDirectory + "' is not a directory");
+                File sampleOutput = getOutputFile(options, new File(options.watchDirectory, "image.png"));
+                if (options.watchDirectory.getCanonicalFile().equals(sampleOutput.getAbsoluteFile().getParentFile().getCanonicalFile()))
+                    throw new BadInitException("Outputs cannot be written to the watched directory, they would be processed again");
+            }
 
             display = createDisplay(options.displayOptions, false, false);
+            ShaderCompiler.setBatchedRendering(options.batchSize > 1);
             scene = createScene(options.displayOptions, fragment);
-        } catch (BadInitException e) {
+            String batchingIssue = options.batchSize > 1 ? BatchedImagePass.getBatchingIssue(scene) : null;
+            if (batchingIssue != null)
+                throw new BadInitException("The scene cannot be rendered in batches, " + batchingIssue);
+
+            if (options.cacheDirectory != null) {
+                if (options.cacheSize <= 0)
+                    throw new BadInitException("The cache size must be >0");
+                outputCache = new OutputCache(options.cacheDirectory, options.cacheSize * 1024L * 1024L);
+                sceneHash = hashSceneState(scene, options, options.displayOptions.winWidth, options.displayOptions.winHeight);
+            }
+
+            if (options.watchDirectory != null) {
+                spoolDirectory = new SpoolDirectory(options.watchDirectory);
+                spoolDirectory.startWatching();
+                fileWatcher = new FileWatcher(scene, false);
+                fileWatcher.startWatching();
+            }
+        } catch (BadInitException | IOException e) {
             Main.logger.err(e.getMessage());
             Main.exitWithError();
             throw new UnreachableException();
         }
 
+        Queue<ImageJob> pendingJobs = new ArrayDeque<>();
         for(File inputFile : inputFiles) {
-            String outputPath = options.outputPath.replaceAll("\\{}", inputFile.getName());
-            File outputFile = new File(outputPath);
-            if(outputFile.isDirectory())
-                outputFile = new File(outputFile, inputFile.getName());
+            ImageJob job = createJob(options, inputFile, outputCache, sceneHash);
+            if (job != null)
+                pendingJobs.add(job);
+        }
+
+        // inputs are decoded ahead of the GL thread and outputs encoded behind it
+        long halfBudget = options.memoryBudget * 1024L * 1024L / 2;
+        ImagePrefetcher prefetcher = new ImagePrefetcher(pendingJobs.stream().map(ImageJob::input).toList(), options.ioThreads, options.prefetchCount, new MemoryBudget(halfBudget));
+        ImageWriterPool writerPool = new ImageWriterPool(options.ioThreads, new MemoryBudget(halfBudget), options.pngCompressionLevel);
+        // render targets are kept per resolution instead of being reallocated for every image
+        TexturesSwapChainPool swapChains = new TexturesSwapChainPool(scene.renderTargets, options.swapChainPoolSize, options.vramBudget * 1024L * 1024L);
+        ExportPipeline.Stage decodeWaitStage = new ExportPipeline.Stage("Waiting on decoders", 1);
+        ExportPipeline.Stage renderStage = new ExportPipeline.Stage("Upload & render", 1);
+        ExportPipeline.Stage readbackStage = new ExportPipeline.Stage("Readback", 1);
+        BatchedImagePass batchPass = options.batchSize > 1
+                ? new BatchedImagePass(display.renderer, scene, options, swapChains, writerPool, renderStage, readbackStage)
+                : null;
+        long batchBegin = System.nanoTime();
+        int processedImages = 0;
+
+        while (true) {
+            if (spoolDirectory != null) {
+                // shaders are reloaded between images, images of a pending batch use the previous shaders
+                if (fileWatcher.hasPendingChanges() && !fileWatcher.isDebouncingRecompilation()) {
+                    if (batchPass != null)
+                        batchPass.flush();
+                    Scene reloadedScene = reloadChangedFiles(fileWatcher, scene, options);
+                    if (outputCache != null) {
+                        try {
+                            sceneHash = hashSceneState(reloadedScene, options, options.displayOptions.winWidth, options.displayOptions.winHeight);
+                        } catch (IOException e) {
+                            Main.logger.err("Could not hash the scene, outputs will not be cached anymore: " + e.getMessage());
+                            outputCache = null;
+                        }
+                        // queued images were keyed with the previous shaders, their outputs must not be cached
+                        List<ImageJob> queuedJobs = new ArrayList<>(pendingJobs);
+                        pendingJobs.clear();
+                        for (ImageJob job : queuedJobs)
+                            pendingJobs.add(new ImageJob(job.input(), job.output(), null));
+                    }
+                    if (reloadedScene != scene) {
+                        scene = reloadedScene;
+                        swapChains.dispose();
+                        swapChains = new TexturesSwapChainPool(scene.renderTargets, options.swapChainPoolSize, options.vramBudget * 1024L * 1024L);
+                        if (batchPass != null)
+                            batchPass = new BatchedImagePass(display.renderer, scene, options, swapChains, writerPool, renderStage, readbackStage);
+                    }
+                    fileWatcher.stopWatching();
+                    fileWatcher = new FileWatcher(scene, false);
+                    try {
+                        fileWatcher.startWatching();
+                    } catch (IOException e) {
+                        Main.logger.err("Could not watch the scene files anymore: " + e.getMessage());
+                    }
+                }
+                for (File inputFile : spoolDirectory.pollSettledFiles()) {
+                    ImageJob job = createJob(options, inputFile, outputCache, sceneHash);
+                    if (job == null)
+                        continue;
+                    prefetcher.submit(inputFile);
+                    pendingJobs.add(job);
+                }
+            }
+
+            if (!prefetcher.hasNext()) {
+                if (spoolDirectory == null)
+                    break;
+                if (batchPass != null)
+                    batchPass.flush();
+                try {
+                    Thread.sleep(SPOOL_POLL_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+
+            ImageJob job = pendingJobs.remove();
+            File inputFile = job.input();
+            File outputFile = job.output();
+            Consumer<File> onWritten = getCacheStore(outputCache, job);
             String imageFormat = FilesUtils.getFileExtension(outputFile).toUpperCase();
-            if(!options.overwriteExistingFiles && outputFile.exists()) {
-                Main.logger.warn("File '" + outputFile.getPath() + "' already exists, add -r to overwrite it");
+
+            long decodeWaitBegin = System.nanoTime();
+            DecodedImage inputImage;
+            try {
+                inputImage = prefetcher.next();
+            } catch (IOException e) {
+                Main.logger.err("Could not read file '" + inputFile.getPath() + "': " + e.getMessage());
                 continue;
             }
+            decodeWaitStage.record(System.nanoTime() - decodeWaitBegin);
 
+            if (batchPass != null) {
+                try {
+                    batchPass.add(inputImage, outputFile, onWritten);
+                } finally {
+                    prefetcher.release(inputImage);
+                }
+                processedImages++;
+                continue;
+            }
+
+            long renderBegin = System.nanoTime();
             int outputWidth = options.displayOptions.winWidth;
             int outputHeight = options.displayOptions.winHeight;
 
             try {
                 if (InputFiles.singleton != null)
                     InputFiles.singleton.dispose();
-                InputFiles.singleton = new InputFiles(new File[] { inputFile }, false);
+                InputFiles.singleton = new InputFiles(inputImage);
                 InputFiles.singleton.startReadingFiles();
                 if (options.displayOptions.sizeToInput) {
-                    int[] resolution = InputFiles.singleton.getFirstInputFileResolution();
-                    outputWidth = resolution[0];
-                    outputHeight = resolution[1];
+                    outputWidth = inputImage.width();
+                    outputHeight = inputImage.height();
                 }
             } catch (BadInitException e) {
                 Main.logger.err("Could not read file '" + inputFile.getPath() + "': " + e.getMessage());
                 continue;
+            } finally {
+                prefetcher.release(inputImage);
             }
-            scene.prepareSwapChain(outputWidth, outputHeight);
-            BufferedImage frameImage = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_3BYTE_BGR);
-            int[] frameCpuBuffer = new int[outputWidth*outputHeight];
+            scene.useSwapChain(swapChains.acquire(outputWidth, outputHeight));
             ResolutionUniform.updateViewportSize(outputWidth, outputHeight);
 
             boolean isInitialFrame = true;
             if(options.runFromFrame != Main.ImagePassOptions.NO_RUN_FROM_FRAME) {
-                for(int i = options.runFromFrame; i < options.screenshotFrame; i++) {
-                    Time.setFrame(i);
+                for(int f = options.runFromFrame; f < options.screenshotFrame; f++) {
+                    Time.setFrame(f);
                     display.renderer.render(scene, null, isInitialFrame);
                     isInitialFrame = false;
                 }
@@ -161,16 +379,122 @@ public class EntryImage extends SetupUtils {
             Time.setFrame(options.screenshotFrame);
 
             display.renderer.render(scene, null, isInitialFrame);
+            renderStage.record(System.nanoTime() - renderBegin);
 
-            scene.swapChain.readColorAttachment(SceneRenderTarget.DEFAULT_RT.name, frameCpuBuffer, options.displayOptions.background);
-            frameImage.setRGB(0, 0, outputWidth, outputHeight, frameCpuBuffer, outputWidth*(outputHeight-1), -outputWidth);
+            long readbackBegin = System.nanoTime();
+            int[] pixels = scene.swapChain.readColorAttachment(SceneRenderTarget.DEFAULT_RT.name, null, options.displayOptions.background);
+            readbackStage.record(System.nanoTime() - readbackBegin);
 
-            try {
-                ImageIO.write(frameImage, imageFormat, outputFile);
-                Main.logger.info("Wrote '" + outputFile.getPath() + "'");
-            } catch (IOException e) {
-                Main.logger.err("Could not write file '" + outputFile.getPath() + "': " + e.getMessage());
+            writerPool.submit(outputFile, imageFormat, outputWidth, outputHeight, pixels, onWritten);
+            processedImages++;
+        }
+
+        if (batchPass != null)
+            batchPass.close();
+        prefetcher.close();
+        writerPool.finish();
+        swapChains.dispose();
+
+        if (spoolDirectory != null) {
+            spoolDirectory.stopWatching();
+            fileWatcher.stopWatching();
+        }
+
+        long batchNanos = System.nanoTime() - batchBegin;
+        Main.logger.info(String.format("Processed %d images in %.2fs (%.1f images/s), %d could not be written",
+                processedImages, batchNanos / 1E9, processedImages * 1E9 / batchNanos, writerPool.getFailuresCount()));
+        Main.logger.info("  " + prefetcher.getDecodeStage());
+        Main.logger.info("  " + decodeWaitStage);
+        Main.logger.info("  " + renderStage);
+        Main.logger.info("  " + readbackStage);
+        Main.logger.info("  " + writerPool.getWriteStage());
+        Main.logger.info("  " + writerPool.getBackpressureStage());
+        Main.logger.info(String.format("  Render targets: %d allocations, %d reuses", swapChains.getAllocationCount(), swapChains.getReuseCount()));
+        if (outputCache != null)
+            Main.logger.info("  " + outputCache);
+    }
+
+    /**
+     * An input image to render, {@code cacheKey} is null when the output must not be cached.
+     */
+    record ImageJob(File input, File output, String cacheKey) {
+
+    }
+
+    /**
+     * @return the job rendering {@code inputFile}, or null if its output already exists or was
+     *         restored from the cache
+     */
+    private static ImageJob createJob(Main.ImagePassOptions options, File inputFile, OutputCache outputCache, String sceneHash) {
+        File outputFile = getOutputFile(options, inputFile);
+        if(!options.overwriteExistingFiles && outputFile.exists()) {
+            Main.logger.warn("File '" + outputFile.getPath() + "' already exists, add -r to overwrite it");
+            return null;
+        }
+        if (outputCache == null)
+            return new ImageJob(inputFile, outputFile, null);
+
+        String cacheKey;
+        try {
+            cacheKey = OutputCache.getKey(sceneHash, inputFile);
+        } catch (IOException e) {
+            Main.logger.err("Could not read file '" + inputFile.getPath() + "': " + e.getMessage());
+            return null;
+        }
+        if (outputCache.tryRestore(cacheKey, outputFile))
+            return null;
+        return new ImageJob(inputFile, outputFile, cacheKey);
+    }
+
+    private static Consumer<File> getCacheStore(OutputCache outputCache, ImageJob job) {
+        if (outputCache == null || job.cacheKey() == null)
+            return null;
+        return writtenFile -> outputCache.store(job.cacheKey(), writtenFile);
+    }
+
+    /**
+     * Hashes the scene and every option that changes the rendered images, see {@link OutputCache}.
+     */
+    private static String hashSceneState(Scene scene, Main.ImagePassOptions options, int outputWidth, int outputHeight) throws IOException {
+        Main.DisplayOptions displayOptions = options.displayOptions;
+        return OutputCache.hashSceneState(scene,
+                displayOptions.sizeToInput, outputWidth, outputHeight, displayOptions.background,
+                options.runFromFrame, options.screenshotFrame, options.framerate, options.tileSize, options.pngCompressionLevel);
+    }
+
+    private static File getOutputFile(Main.ImagePassOptions options, File inputFile) {
+        String outputPath = options.outputPath.replaceAll("\\{}", inputFile.getName());
+        File outputFile = new File(outputPath);
+        if(outputFile.isDirectory())
+            outputFile = new File(outputFile, inputFile.getName());
+        return outputFile;
+    }
+
+    /**
+     * Recompiles the shaders that changed on disk, or the whole scene if its file changed.
+     *
+     * @return the scene to use from now on, the same scene unless it was regenerated
+     */
+    private static Scene reloadChangedFiles(FileWatcher fileWatcher, Scene scene, Main.ImagePassOptions options) {
+        synchronized (fileWatcher) {
+            if (fileWatcher.requiresSceneRecompilation()) {
+                Main.logger.info("Regenerating scene");
+                // the previous scene is disposed only once the new one is known to be usable
+                Scene regeneratedScene = SceneParser.parseScene(scene.sourceFile, scene);
+                String batchingIssue = regeneratedScene != null && options.batchSize > 1 ? BatchedImagePass.getBatchingIssue(regeneratedScene) : null;
+                if (batchingIssue != null) {
+                    Main.logger.err("The scene cannot be rendered in batches, " + batchingIssue + ", keeping the previous scene");
+                    regeneratedScene.dispose();
+                } else if (regeneratedScene != null) {
+                    scene.dispose();
+                    scene = regeneratedScene;
+                }
             }
+            ShaderCompiler.ShaderCompilationResult compilationResult = fileWatcher.processShaderRecompilation();
+            if (compilationResult.success)
+                UniformApplicationContext.resetLoggedBindingWarnings();
+            fileWatcher.processDummyFilesRecompilation();
         }
+        return scene;
     }
 }
@@ -12,6 +12,7 @@ import wonder.shaderdisplay.scene.SceneParser;
 import wonder.shaderdisplay.scene.SceneRenderTarget;
 import wonder.shaderdisplay.serial.InputFiles;
 import wonder.shaderdisplay.serial.Resources;
+import wonder.shaderdisplay.serial.TextureDiskCache;
 import wonder.shaderdisplay.serial.UserConfig;
 import wonder.shaderdisplay.uniforms.Uniform;
 import wonder.shaderdisplay.uniforms.UniformApplicationContext;
@@ -27,7 +28,13 @@ public class EntryRun extends SetupUtils {
             throw new BadInitException("Invalid fps: " + options.targetFPS);
         }
 
-        Texture.setUseCache(!options.noTextureCache);
+        if(options.textureBudget <= 0) {
+            throw new BadInitException("The texture budget must be >0");
+        }
+
+        TextureCache.setEnabled(!options.noTextureCache);
+        TextureCache.setVramBudget(options.textureBudget * 1024L * 1024L);
+        TextureLoader.setAsynchronous(true);
         Time.setFps(options.targetFPS);
     }
 
@@ -40,6 +47,8 @@ public class EntryRun extends SetupUtils {
 
         try {
             UserConfig.loadConfig(sceneFile);
+            if (!options.noTextureCache)
+                TextureDiskCache.setDirectory(new File(UserConfig.getProjectConfigDir(sceneFile), "textures"));
             InputFiles inputFiles = InputFiles.singleton = new InputFiles(rawInputFiles, options.frameExact);
             loadCommonOptions(options, inputFiles);
             display = createDisplay(options.displayOptions, true, options.vsync);
@@ -106,6 +115,7 @@ public class EntryRun extends SetupUtils {
                         }
                         if (imgui != null) imgui.setCurrentSceneValid(compilationResult.success);
                         fileWatcher.processDummyFilesRecompilation();
+                        fileWatcher.processTextureReloads();
                         if (rewatchFiles) {
                             fileWatcher.stopWatching();
                             fileWatcher = new FileWatcher(scene, options.hardReload);
@@ -119,6 +129,7 @@ public class EntryRun extends SetupUtils {
                 // render the actual frame
                 forceRerender |= Time.justChanged() || !Time.isPaused();
                 forceRerender |= userControls.pollJustMoved();
+                forceRerender |= TextureLoader.uploadDecodedTextures();
                 if (forceRerender)
                     display.renderer.render(scene, debugTool, sceneJustReset);
                 sceneJustReset = false;
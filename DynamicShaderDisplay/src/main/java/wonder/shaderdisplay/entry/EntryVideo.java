@@ -2,21 +2,30 @@ package wonder.shaderdisplay.entry;
 
 import fr.wonder.commons.exceptions.UnreachableException;
 import fr.wonder.commons.files.FilesUtils;
-import io.humble.video.*;
-import io.humble.video.awt.MediaPictureConverter;
-import io.humble.video.awt.MediaPictureConverterFactory;
+import wonder.shaderdisplay.serial.ExportPipeline;
+import wonder.shaderdisplay.serial.FrameSink;
+import wonder.shaderdisplay.serial.ImageSequenceFrameSink;
 import wonder.shaderdisplay.serial.InputFiles;
+import wonder.shaderdisplay.serial.Mp4FrameSink;
+import wonder.shaderdisplay.serial.RawStreamFrameSink;
+import wonder.shaderdisplay.serial.RenderCheckpoints;
+import wonder.shaderdisplay.serial.VideoConcatenation;
 import wonder.shaderdisplay.Main;
 import wonder.shaderdisplay.Time;
+import wonder.shaderdisplay.display.FrameConversionPass;
 import wonder.shaderdisplay.display.GLWindow;
 import wonder.shaderdisplay.display.Texture;
+import wonder.shaderdisplay.display.TextureReadbackRing;
 import wonder.shaderdisplay.display.WindowBlit;
 import wonder.shaderdisplay.scene.Scene;
 import wonder.shaderdisplay.scene.SceneRenderTarget;
+import wonder.shaderdisplay.scene.SceneStateAnalysis;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import static org.lwjgl.glfw.GLFW.glfwPollEvents;
 import static org.lwjgl.glfw.GLFW.glfwSwapBuffers;
@@ -28,6 +37,12 @@ public class EntryVideo extends SetupUtils {
 
         if (options.framerate <= 0)
             throw new BadInitException("The framerate must be >0");
+        if (options.readbackBuffers <= 0)
+            throw new BadInitException("At least one readback buffer is required");
+        if (options.workers <= 0)
+            throw new BadInitException("At least one worker is required");
+        if (options.conversionThreads <= 0)
+            throw new BadInitException("At least one conversion thread is required");
         if (options.lastFrame <= 0 && options.videoDuration <= 0)
             throw new BadInitException("Video duration not specified, run with -l <last frame> or -d <duration in seconds>");
         if (options.lastFrame != 0 && options.videoDuration != 0)
@@ -37,13 +52,60 @@ public class EntryVideo extends SetupUtils {
             throw new BadInitException("Last frame cannot be less than or equal to the first frame");
         if (options.outputFile == null)
             options.outputFile = new File(fragment.getParent(), FilesUtils.getFileName(fragment)+".mp4");
-        if (options.outputFile.exists() && !options.overwriteExistingFile)
-            throw new BadInitException("File '" + options.outputFile + "' already exists, run with -u to overwrite");
+        if (options.pngCompressionLevel < 0 || options.pngCompressionLevel > 9)
+            throw new BadInitException("The png compression level must be between 0 and 9");
+        if (options.checkpointInterval < 0)
+            throw new BadInitException("The checkpoint interval must be >=0");
+        if (options.resume && options.checkpointInterval == 0)
+            throw new BadInitException("Resuming an export requires --checkpoint-every");
+        if (options.checkpointInterval > 0 && options.workers > 1)
+            throw new BadInitException("Exports rendered by several workers cannot be checkpointed, run with --workers 1");
+        if (options.checkpointInterval > 0 && options.checkpointDirectory == null && !isStdoutStream(options))
+            options.checkpointDirectory = RenderCheckpoints.getDefaultDirectory(options.outputFile);
+
+        if (isStdoutStream(options)) {
+            if (options.workers > 1)
+                throw new BadInitException("Frames streamed to stdout cannot be rendered by several workers");
+            if (options.checkpointInterval > 0)
+                throw new BadInitException("Frames streamed to stdout cannot be checkpointed");
+            if (options.streamFormat == Main.VideoOptions.StreamFormat.Y4M && (options.displayOptions.winWidth % 2 != 0 || options.displayOptions.winHeight % 2 != 0))
+                throw new BadInitException("The video width and height must be even");
+        } else if (isImageSequence(options)) {
+            if (ImageSequenceFrameSink.ImageFormat.fromFile(options.outputFile) == null)
+                throw new BadInitException("Unsupported image sequence format '" + FilesUtils.getFileExtension(options.outputFile) + "', use png, ppm or raw");
+            File firstFrameFile = ImageSequenceFrameSink.getFrameFile(options.outputFile.getPath(), options.firstFrame);
+            if (firstFrameFile.exists() && !options.overwriteExistingFile && !options.resume)
+                throw new BadInitException("File '" + firstFrameFile + "' already exists, run with -u to overwrite");
+            File directory = firstFrameFile.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BadInitException("Could not create directory '" + directory + "'");
+        } else {
+            if (options.displayOptions.winWidth % 2 != 0 || options.displayOptions.winHeight % 2 != 0)
+                throw new BadInitException("The video width and height must be even");
+            if (options.outputFile.exists() && !options.overwriteExistingFile)
+                throw new BadInitException("File '" + options.outputFile + "' already exists, run with -u to overwrite");
+        }
 
         Time.setFps(options.framerate);
     }
 
+    /**
+     * Whether the output is '-', the argument parser resolves it against the working directory.
+     */
+    static boolean isStdoutStream(Main.VideoOptions options) {
+        return options.outputFile != null && options.outputFile.getName().equals("-");
+    }
+
+    static boolean isImageSequence(Main.VideoOptions options) {
+        return ImageSequenceFrameSink.isSequencePattern(options.outputFile.getPath());
+    }
+
     public static void run(Main.VideoOptions options, File fragment, File... inputFiles) {
+        if (isStdoutStream(options)) {
+            // stdout carries the frames, everything else goes to stderr
+            System.setOut(System.err);
+            Main.logger.redirectOut(System.err);
+        }
         Main.logger.info("-- Running video generation --");
 
         int videoWidth, videoHeight;
@@ -67,54 +129,86 @@ public class EntryVideo extends SetupUtils {
             throw new UnreachableException();
         }
 
-        BufferedImage frame = new BufferedImage(videoWidth, videoHeight, BufferedImage.TYPE_3BYTE_BGR);
-        int[] buffer = new int[videoWidth*videoHeight];
-
-        Muxer muxer = Muxer.make(options.outputFile.getAbsolutePath(), null, "mp4");
-        MuxerFormat format = muxer.getFormat();
-        Codec codec = Codec.findEncodingCodec(format.getDefaultVideoCodecId());
-        Encoder encoder = Encoder.make(codec);
-        MediaPacket packet = MediaPacket.make();
-
-        PixelFormat.Type pixelFormat = PixelFormat.Type.PIX_FMT_YUV420P;
-        Rational framerate = Rational.make(1 / options.framerate);
-        encoder.setWidth(videoWidth);
-        encoder.setHeight(videoHeight);
-        encoder.setPixelFormat(pixelFormat);
-        encoder.setTimeBase(framerate);
-
-        if (format.getFlag(MuxerFormat.Flag.GLOBAL_HEADER))
-            encoder.setFlag(Encoder.Flag.FLAG_GLOBAL_HEADER, true);
+        if (options.workers > 1) {
+            List<String> dependencies = SceneStateAnalysis.findInterFrameDependencies(scene);
+            if (dependencies.isEmpty()) {
+                ParallelVideoExport.run(options, fragment, inputFiles);
+                return;
+            }
+            Main.logger.warn("The scene carries state between frames, rendering with a single worker:");
+            for (String dependency : dependencies)
+                Main.logger.warn("  " + dependency);
+        }
 
-        encoder.open(null, null);
-        muxer.addNewStream(encoder);
-        try {
-            muxer.open(null, null);
-        } catch (InterruptedException | IOException e) {
-            throw new RuntimeException(e);
+        RenderCheckpoints checkpoints = null;
+        int startFrame = options.firstFrame;
+        if (options.checkpointInterval > 0) {
+            try {
+                checkpoints = new RenderCheckpoints(options.checkpointDirectory, options.checkpointInterval, options.firstFrame);
+                if (options.resume) {
+                    int resumeFrame = checkpoints.restoreLatest(scene);
+                    if (resumeFrame < 0)
+                        Main.logger.warn("No checkpoint found in '" + options.checkpointDirectory + "', starting from the first frame");
+                    else
+                        startFrame = resumeFrame;
+                }
+            } catch (IOException e) {
+                Main.logger.err(e, "Could not resume from the latest checkpoint");
+                Main.exitWithError();
+                throw new UnreachableException();
+            }
         }
 
-        MediaPictureConverter converter = null;
-        MediaPicture picture = MediaPicture.make(videoWidth, videoHeight, pixelFormat);
-        picture.setTimeBase(framerate);
+        FrameConversionPass.OutputFormat conversionFormat;
+        FrameSink<?> sink;
+        if (isStdoutStream(options)) {
+            conversionFormat = options.streamFormat == Main.VideoOptions.StreamFormat.Y4M ? FrameConversionPass.OutputFormat.YUV420P : FrameConversionPass.OutputFormat.BGRA;
+            sink = new RawStreamFrameSink(new FileOutputStream(FileDescriptor.out).getChannel(), videoWidth, videoHeight, options.framerate, options.streamFormat);
+            Main.logger.info("Streaming " + videoWidth + "x" + videoHeight + " " + options.streamFormat.name().toLowerCase() + " frames at " + options.framerate + " fps to stdout");
+        } else if (isImageSequence(options)) {
+            conversionFormat = FrameConversionPass.OutputFormat.BGRA;
+            sink = new ImageSequenceFrameSink(options.outputFile.getPath(), videoWidth, videoHeight,
+                    ImageSequenceFrameSink.ImageFormat.fromFile(options.outputFile),
+                    options.displayOptions.background == Main.DisplayOptions.BackgroundType.NORMAL,
+                    options.pngCompressionLevel);
+        } else {
+            conversionFormat = options.cpuColorConversion ? FrameConversionPass.OutputFormat.BGRA : FrameConversionPass.OutputFormat.YUV420P;
+            if (checkpoints != null)
+                sink = Mp4FrameSink.segmented(checkpoints::getSegmentFile, checkpoints.getInterval(), videoWidth, videoHeight, options.framerate, options.firstFrame, conversionFormat);
+            else
+                sink = new Mp4FrameSink(options.outputFile, videoWidth, videoHeight, options.framerate, options.firstFrame, conversionFormat);
+        }
+        int firstRenderedFrame = startFrame;
+        int frameCount = options.lastFrame - startFrame;
+        RenderCheckpoints writtenFramesListener = checkpoints;
+        ExportPipeline<?> pipeline = new ExportPipeline<>(sink, options.conversionThreads, !options.noDeduplication, written -> {
+            printProgressbar(written, frameCount);
+            if (writtenFramesListener != null)
+                writtenFramesListener.onFrameWritten(firstRenderedFrame + written - 1);
+        });
+        ExportPipeline.Stage renderStage = pipeline.addStage("Rendering", 1);
+        ExportPipeline.Stage readbackStage = pipeline.addStage("Readback wait", 1);
+        FrameConversionPass frameConversion = new FrameConversionPass(videoWidth, videoHeight, conversionFormat);
+        TextureReadbackRing readback = new TextureReadbackRing(options.readbackBuffers,
+                frameConversion.getOutputWidth(), frameConversion.getOutputHeight(), conversionFormat.readbackFormat, pipeline::submit);
 
-        for(int f = options.firstFrame; f < options.lastFrame && !GLWindow.shouldDispose(); f++) {
+        long exportBegin = System.nanoTime();
+        int renderedFrames = 0;
+        for(int f = startFrame; f < options.lastFrame && !GLWindow.shouldDispose(); f++) {
+            long renderBegin = System.nanoTime();
             Time.setFrame(f);
+            if (checkpoints != null && checkpoints.isCheckpointFrame(f)) {
+                try {
+                    checkpoints.save(scene, f);
+                } catch (IOException e) {
+                    Main.logger.err(e, "Could not save a checkpoint at frame " + f);
+                }
+            }
             display.renderer.render(scene, null, f == options.firstFrame);
-            scene.swapChain.readColorAttachment(SceneRenderTarget.DEFAULT_RT.name, buffer, options.displayOptions.background);
-
-            frame.setRGB(0, 0, videoWidth, videoHeight, buffer, videoWidth*(videoHeight-1), -videoWidth);
-            if (converter == null)
-                converter = MediaPictureConverterFactory.createConverter(frame, picture);
-            converter.toPicture(picture, frame, f - options.firstFrame);
-
-            do {
-                encoder.encode(packet, picture);
-                if (packet.isComplete())
-                    muxer.write(packet, false);
-            } while (packet.isComplete());
-
-            printProgressbar(f-options.firstFrame + 1, options.lastFrame-options.firstFrame);
+            Texture convertedFrame = frameConversion.convert(scene.swapChain.getAttachment(SceneRenderTarget.DEFAULT_RT.name), options.displayOptions.background);
+            renderStage.record(System.nanoTime() - renderBegin);
+            readback.requestRead(convertedFrame, f);
+            renderedFrames++;
 
             if (options.preview) {
                 Texture backbuffer = scene.swapChain.getAttachment(SceneRenderTarget.DEFAULT_RT.name);
@@ -123,15 +217,28 @@ public class EntryVideo extends SetupUtils {
                 glfwPollEvents();
             }
         }
+        readback.flush();
+        pipeline.finish();
 
-        do {
-            encoder.encode(packet, null);
-            if (packet.isComplete())
-                muxer.write(packet,  false);
-        } while (packet.isComplete());
-        muxer.close();
+        readbackStage.recordTotal(readback.getFenceWaitNanos(), renderedFrames);
+        readback.dispose();
+        frameConversion.dispose();
+        pipeline.logStatistics(System.nanoTime() - exportBegin);
 
-        Main.logger.info("Successfully wrote " + options.outputFile);
+        if (checkpoints != null) {
+            if (!isImageSequence(options)) {
+                try {
+                    List<File> segments = checkpoints.getSegmentFiles();
+                    int[] segmentFirstFrames = segments.stream().mapToInt(segment -> RenderCheckpoints.getSegmentFirstFrame(segment) - options.firstFrame).toArray();
+                    VideoConcatenation.concatenate(segments, segmentFirstFrames, options.framerate, options.outputFile);
+                } catch (IOException | InterruptedException e) {
+                    Main.logger.err(e, "Could not join the video segments, they are kept in '" + options.checkpointDirectory + "'");
+                    Main.exitWithError();
+                }
+            }
+            checkpoints.deleteDirectory();
+        }
+        Main.logger.info("Successfully wrote " + (isStdoutStream(options) ? "stdout" : options.outputFile));
 
         Main.exit();
     }
@@ -0,0 +1,187 @@
+package wonder.shaderdisplay.entry;
+
+import fr.wonder.argparser.annotations.InnerOptions;
+import fr.wonder.argparser.annotations.Option;
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.serial.ImageSequenceFrameSink;
+import wonder.shaderdisplay.serial.VideoConcatenation;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Renders a video with several processes, each worker renders and encodes a contiguous range of
+ * frames into its own segment, segments are then concatenated without re-encoding.
+ * <p>
+ * Only valid for scenes that do not carry state between frames.
+ */
+class ParallelVideoExport {
+
+    private static final String MAIN_CLASS = Main.class.getName();
+
+    static void run(Main.VideoOptions options, File fragment, File[] inputFiles) {
+        int workersCount = Math.min(options.workers, options.lastFrame - options.firstFrame);
+        File segmentsDirectory = new File(options.outputFile.getParentFile(), options.outputFile.getName().replace(ImageSequenceFrameSink.FRAME_NUMBER_PATTERN, "") + ".segments");
+        if (!segmentsDirectory.isDirectory() && !segmentsDirectory.mkdirs()) {
+            Main.logger.err("Could not create directory '" + segmentsDirectory + "'");
+            Main.exitWithError();
+        }
+
+        List<File> segments = new ArrayList<>();
+        List<File> logs = new ArrayList<>();
+        int[] segmentFirstFrames = new int[workersCount];
+        List<Process> workers = new ArrayList<>();
+        int frameCount = options.lastFrame - options.firstFrame;
+        long exportBegin = System.nanoTime();
+
+        try {
+            for (int i = 0; i < workersCount; i++) {
+                int first = options.firstFrame + frameCount * i / workersCount;
+                int last = options.firstFrame + frameCount * (i+1) / workersCount;
+                // image sequences are written directly by the workers, frame files do not overlap
+                File segment = EntryVideo.isImageSequence(options) ? options.outputFile : new File(segmentsDirectory, String.format("segment_%03d.mp4", i));
+                File log = new File(segmentsDirectory, String.format("segment_%03d.log", i));
+                segments.add(segment);
+                logs.add(log);
+                segmentFirstFrames[i] = first - options.firstFrame;
+
+                List<String> command = makeWorkerCommand(options, fragment, inputFiles, first, last, segment);
+                Main.logger.debug("Starting worker: " + String.join(" ", command));
+                Process worker = new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(log)
+                        .start();
+                workers.add(worker);
+                Main.logger.info(String.format("Worker #%d renders frames [%d,%d), logs in %s", i, first, last, log));
+            }
+
+            boolean failed = false;
+            for (int i = 0; i < workers.size(); i++) {
+                int exitCode = workers.get(i).waitFor();
+                if (exitCode != 0) {
+                    Main.logger.err(String.format("Worker #%d failed with exit code %d, see %s", i, exitCode, logs.get(i)));
+                    failed = true;
+                } else {
+                    Main.logger.info(String.format("Worker #%d done", i));
+                }
+            }
+            if (failed) {
+                Main.exitWithError();
+                return;
+            }
+
+            if (!EntryVideo.isImageSequence(options))
+                VideoConcatenation.concatenate(segments, segmentFirstFrames, options.framerate, options.outputFile);
+        } catch (IOException | InterruptedException e) {
+            workers.forEach(Process::destroy);
+            Main.logger.err(e, "Could not render the video with multiple workers");
+            Main.exitWithError();
+            return;
+        }
+
+        for (File file : Objects.requireNonNull(segmentsDirectory.listFiles()))
+            file.delete();
+        segmentsDirectory.delete();
+
+        long exportDuration = System.nanoTime() - exportBegin;
+        Main.logger.info(String.format("Exported %d frames with %d workers in %.2fs (%.1f fps)",
+                frameCount, workersCount, exportDuration / 1E9, frameCount * 1E9 / exportDuration));
+        Main.logger.info("Successfully wrote " + options.outputFile);
+        Main.exit();
+    }
+
+    private static List<String> makeWorkerCommand(Main.VideoOptions options, File fragment, File[] inputFiles, int firstFrame, int lastFrame, File output) {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse(new File(System.getProperty("java.home"), "bin/java").getPath()));
+        // keep jvm options such as -XstartOnFirstThread, but do not start a second debugger on the same port
+        for (String jvmArgument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!jvmArgument.startsWith("-agentlib:jdwp"))
+                command.add(jvmArgument);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MAIN_CLASS);
+        command.add("video");
+        command.add(fragment.getAbsolutePath());
+        for (File input : inputFiles)
+            command.add(input.getAbsolutePath());
+
+        Main.VideoOptions workerOptions = copyOptions(options, new Main.VideoOptions());
+        workerOptions.firstFrame = firstFrame;
+        workerOptions.lastFrame = lastFrame;
+        workerOptions.videoDuration = 0;
+        workerOptions.outputFile = output;
+        workerOptions.overwriteExistingFile = true;
+        workerOptions.preview = false;
+        workerOptions.workers = 1;
+        workerOptions.checkpointInterval = 0;
+        workerOptions.checkpointDirectory = null;
+        workerOptions.resume = false;
+        appendOptions(command, workerOptions, new Main.VideoOptions());
+        return command;
+    }
+
+    /**
+     * Copies every option field of {@code source} into {@code destination}, including inner options.
+     */
+    private static <T> T copyOptions(T source, T destination) {
+        try {
+            for (Field field : source.getClass().getFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers()))
+                    continue;
+                if (field.isAnnotationPresent(InnerOptions.class))
+                    field.set(destination, copyOptions(field.get(source), field.getType().getConstructor().newInstance()));
+                else if (field.isAnnotationPresent(Option.class))
+                    field.set(destination, field.get(source));
+            }
+            return destination;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not copy options", e);
+        }
+    }
+
+    /**
+     * Writes the command line arguments that reproduce {@code options}, options left to
+     * their default values are omitted.
+     */
+    private static void appendOptions(List<String> arguments, Object options, Object defaults) {
+        try {
+            for (Field field : options.getClass().getFields()) {
+                if (Modifier.isStatic(field.getModifiers()))
+                    continue;
+                if (field.isAnnotationPresent(InnerOptions.class)) {
+                    Object innerDefaults = field.get(defaults);
+                    if (innerDefaults == null)
+                        innerDefaults = field.getType().getConstructor().newInstance();
+                    appendOptions(arguments, field.get(options), innerDefaults);
+                    continue;
+                }
+                Option option = field.getAnnotation(Option.class);
+                Object value = field.get(options);
+                if (option == null || value == null || value.equals(field.get(defaults)))
+                    continue;
+                if (value instanceof Boolean flag) {
+                    if (flag)
+                        arguments.add(option.name());
+                } else {
+                    arguments.add(option.name());
+                    if (value instanceof File file)
+                        arguments.add(file.getAbsolutePath());
+                    else if (value instanceof Enum<?> enumValue)
+                        arguments.add(enumValue.name());
+                    else
+                        arguments.add(value.toString());
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not rebuild worker options", e);
+        }
+    }
+
+}
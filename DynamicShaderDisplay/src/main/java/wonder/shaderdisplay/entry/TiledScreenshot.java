@@ -0,0 +1,82 @@
+package wonder.shaderdisplay.entry;
+
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.Time;
+import wonder.shaderdisplay.display.Renderer;
+import wonder.shaderdisplay.scene.Scene;
+import wonder.shaderdisplay.scene.SceneRenderTarget;
+import wonder.shaderdisplay.serial.StreamingPngWriter;
+import wonder.shaderdisplay.uniforms.predefined.TileOffsetUniform;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Renders a screenshot larger than what fits in a texture, or in video memory, one tile at a time.
+ * <p>
+ * The scene's render targets are sized to a single tile and fragment shaders must have been compiled
+ * with {@link wonder.shaderdisplay.display.ShaderCompiler#setTiledRendering(boolean) tiled rendering}
+ * so that {@code gl_FragCoord} covers the full image. Tiles are rendered one band of rows at a time,
+ * each band is streamed to the png file before rendering the next one.
+ * <p>
+ * The result only matches a full size render if each pixel depends on its own coordinates, effects
+ * sampling render targets at other positions (blur, bloom...) will show seams between tiles.
+ */
+class TiledScreenshot {
+
+    /** Tile size used when the output is too large to be rendered at once and no tile size is given */
+    static final int DEFAULT_TILE_SIZE = 4096;
+    /** Outputs larger than this are rendered in tiles even if they would fit in a texture */
+    static final int AUTO_TILING_SIZE = 8192;
+
+    static void render(Renderer renderer, Scene scene, Main.ImagePassOptions options, File outputFile,
+                       int outputWidth, int outputHeight, int tileWidth, int tileHeight) throws IOException {
+        int[] tilePixels = new int[tileWidth * tileHeight];
+        int[] bandPixels = new int[outputWidth * tileHeight];
+        int columns = (outputWidth + tileWidth - 1) / tileWidth;
+        int bands = (outputHeight + tileHeight - 1) / tileHeight;
+        Main.logger.info(String.format("Rendering %dx%d in %d tiles of %dx%d", outputWidth, outputHeight, columns * bands, tileWidth, tileHeight));
+
+        try (StreamingPngWriter writer = new StreamingPngWriter(outputFile, outputWidth, outputHeight, options.pngCompressionLevel)) {
+            // bands go from the top of the image to the bottom, opengl rows go upward
+            for (int band = 0; band < bands; band++) {
+                int bandTop = band * tileHeight;
+                int bandHeight = Math.min(tileHeight, outputHeight - bandTop);
+                int tileY = outputHeight - bandTop - bandHeight;
+
+                for (int column = 0; column < columns; column++) {
+                    int tileX = column * tileWidth;
+                    int columnWidth = Math.min(tileWidth, outputWidth - tileX);
+                    renderTile(renderer, scene, options, tileX, tileY, tilePixels);
+                    for (int row = 0; row < bandHeight; row++)
+                        System.arraycopy(tilePixels, (bandHeight - 1 - row) * tileWidth, bandPixels, row * outputWidth + tileX, columnWidth);
+                }
+
+                for (int row = 0; row < bandHeight; row++)
+                    writer.writeRow(bandPixels, row * outputWidth);
+                Main.logger.debug(String.format("Wrote band %d/%d", band + 1, bands));
+            }
+        } finally {
+            TileOffsetUniform.setTileOffset(0, 0);
+        }
+    }
+
+    private static void renderTile(Renderer renderer, Scene scene, Main.ImagePassOptions options, int tileX, int tileY, int[] outPixels) {
+        TileOffsetUniform.setTileOffset(tileX, tileY);
+        scene.clearSwapChainTexturesAndBuffers();
+
+        boolean isInitialFrame = true;
+        if (options.runFromFrame != Main.ImagePassOptions.NO_RUN_FROM_FRAME) {
+            for (int i = options.runFromFrame; i < options.screenshotFrame; i++) {
+                Time.setFrame(i);
+                renderer.render(scene, null, isInitialFrame);
+                isInitialFrame = false;
+            }
+        }
+        Time.setFrame(options.screenshotFrame);
+        renderer.render(scene, null, isInitialFrame);
+
+        scene.swapChain.readColorAttachment(SceneRenderTarget.DEFAULT_RT.name, outPixels, options.displayOptions.background);
+    }
+
+}
@@ -6,6 +6,7 @@ import wonder.shaderdisplay.controls.UserControls;
 import wonder.shaderdisplay.display.GLWindow;
 import wonder.shaderdisplay.display.StorageBuffer;
 import wonder.shaderdisplay.display.TexturesSwapChain;
+import wonder.shaderdisplay.display.TexturesSwapChainPool;
 import wonder.shaderdisplay.serial.UserConfig;
 
 import java.io.File;
@@ -37,15 +38,30 @@ public class Scene {
     }
 
     public void prepareSwapChain(int winWidth, int winHeight) {
-        if (swapChain != null) {
-            resizeHandle.remove();
-            swapChain.dispose();
-        }
+        releaseOwnedSwapChain();
         this.swapChain = new TexturesSwapChain(renderTargets, winWidth, winHeight);
         this.resizeHandle = GLWindow.addResizeListener(swapChain::resizeTextures);
         this.renderTargetNames = renderTargets.stream().map(rt -> rt.name).toArray(String[]::new);
     }
 
+    /**
+     * Renders to a swap chain owned by a {@link TexturesSwapChainPool}, it is not resized with
+     * the window and not disposed when replaced.
+     */
+    public void useSwapChain(TexturesSwapChain pooledSwapChain) {
+        releaseOwnedSwapChain();
+        this.swapChain = pooledSwapChain;
+        this.renderTargetNames = renderTargets.stream().map(rt -> rt.name).toArray(String[]::new);
+    }
+
+    private void releaseOwnedSwapChain() {
+        if (resizeHandle != null) {
+            resizeHandle.remove();
+            swapChain.dispose();
+            resizeHandle = null;
+        }
+    }
+
     public void dispose() {
         for (SceneLayer layer : layers) {
             layer.dispose();
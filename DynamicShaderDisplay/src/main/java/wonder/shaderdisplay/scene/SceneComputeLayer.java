@@ -41,12 +41,14 @@ public class SceneComputeLayer extends SceneLayer implements CompilableLayer, Re
     @Override
     public void dispose() {
         compiledShaders.disposeAll();
+        shaderUniforms.dispose();
     }
 
     @Override
     public Stream<FileWatcher.WatchableResourceAssociation> collectResourceFiles() {
-        return Arrays.stream(compiledShaders.shaderSourceFiles[ShaderType.COMPUTE.ordinal()]).map(
-                f -> new FileWatcher.WatchableShaderFiles(f, this)
+        return Stream.concat(
+                Arrays.stream(compiledShaders.shaderSourceFiles[ShaderType.COMPUTE.ordinal()]).map(f -> new FileWatcher.WatchableShaderFiles(f, this)),
+                shaderUniforms.getTextureFiles().stream().map(FileWatcher.WatchableTextureFile::new)
         );
     }
 
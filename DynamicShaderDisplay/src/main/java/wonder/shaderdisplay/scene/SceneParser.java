@@ -29,12 +29,27 @@ public class SceneParser {
     }
 
     public static Scene regenerateScene(File file, Scene previousScene) {
+        Scene scene = parseScene(file, previousScene);
+        if (scene == null)
+            return previousScene;
+        if (previousScene != null)
+            previousScene.dispose();
+        return scene;
+    }
+
+    /**
+     * Same as {@link #regenerateScene(File, Scene)} but the previous scene is never disposed, the
+     * caller decides which scene to keep.
+     *
+     * @return the new scene, or null if it could not be loaded
+     */
+    public static Scene parseScene(File file, Scene previousScene) {
         JsonScene serialized;
         try {
             serialized = JsonUtils.JSON_MAPPER.readValue(file, JsonScene.class);
         } catch (IOException e) {
             Main.logger.err("Could not parse the scene file: " + e.getMessage());
-            return previousScene;
+            return null;
         }
 
         ErrorWrapper errors = new ErrorWrapper("Could not regenerate the scene");
@@ -85,11 +100,9 @@ public class SceneParser {
         if (!errors.noErrors()) {
             scene.dispose();
             errors.dump(Main.logger);
-            return previousScene;
+            return null;
         }
 
-        if (previousScene != null)
-            previousScene.dispose();
         return scene;
     }
 
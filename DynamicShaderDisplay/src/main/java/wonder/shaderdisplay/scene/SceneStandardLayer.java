@@ -69,6 +69,7 @@ public class SceneStandardLayer extends SceneLayer implements CompilableLayer, R
     public void dispose() {
         if (mesh != null) mesh.dispose();
         compiledShaders.disposeAll();
+        shaderUniforms.dispose();
     }
 
     @Override
@@ -82,6 +83,8 @@ public class SceneStandardLayer extends SceneLayer implements CompilableLayer, R
         }
         if (mesh != null && mesh.getSourceFile() != null)
             watches.add(new FileWatcher.WatchableMeshFile(mesh.getSourceFile(), this));
+        for (File textureFile : shaderUniforms.getTextureFiles())
+            watches.add(new FileWatcher.WatchableTextureFile(textureFile));
         return watches.stream();
     }
 
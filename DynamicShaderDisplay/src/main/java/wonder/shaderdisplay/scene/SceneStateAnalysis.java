@@ -0,0 +1,113 @@
+package wonder.shaderdisplay.scene;
+
+import java.util.*;
+
+/**
+ * Finds what makes a scene carry state from one frame to the next. A scene without such state
+ * renders frame N the same way whether or not frames before N were rendered, which allows
+ * rendering separate frame ranges independently.
+ * <p>
+ * The analysis is conservative, it only relies on the parsed scene and not on what shaders
+ * actually write.
+ */
+public class SceneStateAnalysis {
+
+    /**
+     * @return a description of each dependency between frames, empty if the scene is stateless
+     */
+    public static List<String> findInterFrameDependencies(Scene scene) {
+        List<String> dependencies = new ArrayList<>();
+
+        if (!scene.storageBuffers.isEmpty())
+            dependencies.add("storage buffers " + scene.storageBuffers.keySet() + " keep their content between frames");
+
+        List<SceneLayer> layers = scene.layers.stream().filter(l -> l.enabled).toList();
+        // the renderer never clears render targets by itself, only clear layers running every frame do
+        Set<String> clearedEveryFrame = new HashSet<>();
+        for (SceneLayer layer : layers) {
+            if (layer instanceof SceneClearLayer clearLayer && runsEveryFrame(layer))
+                clearedEveryFrame.addAll(Arrays.asList(clearLayer.outRenderTargets));
+        }
+        Set<String> writtenRenderTargets = new HashSet<>();
+        Set<String> clearedRenderTargets = new HashSet<>();
+
+        for (int i = 0; i < layers.size(); i++) {
+            SceneLayer layer = layers.get(i);
+
+            for (ExecutionCondition execution : layer.executions) {
+                if (execution instanceof ExecutionCondition.OnPresetCondition preset && preset.type == ExecutionCondition.OnPresetCondition.Type.ON_RESET)
+                    dependencies.add("layer '" + layer.getDisplayName() + "' only runs on reset");
+            }
+            if (Arrays.stream(layer.executions).anyMatch(e -> e instanceof ExecutionCondition.TimeBasedCondition)) {
+                for (String target : getWrittenRenderTargets(layer)) {
+                    if (!clearedEveryFrame.contains(target))
+                        dependencies.add("layer '" + layer.getDisplayName() + "' only runs on some frames, what it writes to render target '" + target + "' is kept in the frames it does not run");
+                }
+            }
+
+            if (layer instanceof SceneClearLayer clearLayer) {
+                if (runsEveryFrame(layer))
+                    clearedRenderTargets.addAll(Arrays.asList(clearLayer.outRenderTargets));
+                writtenRenderTargets.addAll(Arrays.asList(clearLayer.outRenderTargets));
+                continue;
+            }
+            if (!(layer instanceof CompilableLayer compilableLayer))
+                continue;
+
+            if (layer instanceof SceneComputeLayer) {
+                // compute layers have no declared outputs, any render target they use may be written through an image
+                for (String target : getWrittenRenderTargets(layer)) {
+                    if (!clearedRenderTargets.contains(target))
+                        dependencies.add("compute layer '" + layer.getDisplayName() + "' may write render target '" + target + "' which is not cleared beforehand");
+                    writtenRenderTargets.add(target);
+                }
+                continue;
+            }
+
+            for (String sampled : compilableLayer.getUniformControls().getSampledRenderTargets()) {
+                if (writtenRenderTargets.contains(sampled))
+                    continue;
+                for (int j = i; j < layers.size(); j++) {
+                    if (getWrittenRenderTargets(layers.get(j)).contains(sampled)) {
+                        dependencies.add("layer '" + layer.getDisplayName() + "' samples render target '" + sampled + "' before it is written, reading the previous frame");
+                        break;
+                    }
+                }
+            }
+
+            if (layer instanceof SceneStandardLayer standardLayer) {
+                RenderState renderState = standardLayer.renderState;
+                for (String target : getWrittenRenderTargets(standardLayer)) {
+                    if (!clearedRenderTargets.contains(target)) {
+                        if (renderState.blendSrcA != null)
+                            dependencies.add("layer '" + layer.getDisplayName() + "' blends into render target '" + target + "' which is not cleared beforehand");
+                        if (isDepthTarget(scene, target) && (renderState.isDepthTestEnabled || renderState.isDepthWriteEnabled))
+                            dependencies.add("layer '" + layer.getDisplayName() + "' uses depth target '" + target + "' which is not cleared beforehand, depth is tested against the previous frame");
+                    }
+                    writtenRenderTargets.add(target);
+                }
+            }
+        }
+
+        return dependencies;
+    }
+
+    private static boolean runsEveryFrame(SceneLayer layer) {
+        return Arrays.stream(layer.executions).allMatch(e -> e instanceof ExecutionCondition.OnPresetCondition preset && preset.type == ExecutionCondition.OnPresetCondition.Type.ALWAYS);
+    }
+
+    private static boolean isDepthTarget(Scene scene, String renderTarget) {
+        return scene.renderTargets.stream().anyMatch(rt -> rt.name.equals(renderTarget) && rt.type == SceneRenderTarget.RenderTargetType.DEPTH);
+    }
+
+    private static List<String> getWrittenRenderTargets(SceneLayer layer) {
+        if (layer instanceof SceneClearLayer clearLayer)
+            return Arrays.asList(clearLayer.outRenderTargets);
+        if (layer instanceof SceneComputeLayer computeLayer)
+            return List.copyOf(computeLayer.getUniformControls().getSampledRenderTargets());
+        if (layer instanceof RenderableLayer renderable && renderable.getOutputRenderTargets() != null)
+            return Arrays.asList(renderable.getOutputRenderTargets());
+        return List.of();
+    }
+
+}
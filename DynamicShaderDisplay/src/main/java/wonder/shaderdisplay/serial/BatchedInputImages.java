@@ -0,0 +1,56 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.display.Texture;
+
+/**
+ * Input of batched image passes, the images of a batch are the layers of a single
+ * {@code sampler2DArray}. The texture is kept from one batch to the next while the
+ * image size does not change.
+ */
+public class BatchedInputImages implements InputImageStream {
+
+    private Texture texture;
+    private int layerCount;
+
+    /**
+     * Prepares the texture for a batch of images of the given size.
+     */
+    public void beginBatch(int width, int height, int layerCount) {
+        if (texture != null && texture.getWidth() == width && texture.getHeight() == height && this.layerCount == layerCount)
+            return;
+        if (texture != null)
+            texture.dispose();
+        this.texture = Texture.createLayeredTexture(width, height, layerCount);
+        this.layerCount = layerCount;
+    }
+
+    /**
+     * Uploads an image of the batch, the decoded pixels can be released once this returns.
+     */
+    public void setLayer(int layer, DecodedImage image) {
+        if (image.width() != texture.getWidth() || image.height() != texture.getHeight())
+            throw new IllegalArgumentException("The image size does not match the batch");
+        texture.uploadLayer(layer, image.pixels());
+    }
+
+    @Override
+    public int[] getImageResolution() {
+        return texture == null ? null : new int[] { texture.getWidth(), texture.getHeight() };
+    }
+
+    @Override
+    public void startReading() {}
+
+    @Override
+    public Texture getTexture() {
+        return texture == null ? Texture.getMissingTexture() : texture;
+    }
+
+    @Override
+    public void close() {
+        if (texture != null)
+            texture.dispose();
+        texture = null;
+    }
+
+}
@@ -0,0 +1,53 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.display.Texture;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * An image decoded on the CPU, ready to be uploaded as a texture. Decoding does not
+ * require a GL context so it can be done ahead of time by another thread.
+ */
+public record DecodedImage(File file, int width, int height, int[] pixels) {
+
+    public static DecodedImage decode(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("Unsupported image format");
+        return new DecodedImage(file, image.getWidth(), image.getHeight(), Texture.loadTextureData(image, false));
+    }
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding it.
+     *
+     * @return the number of bytes the image will hold once decoded
+     */
+    public static long readSizeInBytes(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext())
+                throw new IOException("Unsupported image format");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0) * Integer.BYTES;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes held by the decoded pixels
+     */
+    public long getSizeInBytes() {
+        return (long) width * height * Integer.BYTES;
+    }
+
+}
@@ -0,0 +1,365 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.display.TextureReadbackRing.ReadbackSlot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Moves exported frames from the GL thread to a {@link FrameSink} through three stages:
+ * <ul>
+ * <li>the caller (GL thread) renders and reads back frames, then {@link #submit(ReadbackSlot) submits} them</li>
+ * <li>a pool of workers converts the read back pixels into payloads</li>
+ * <li>a single writer thread consumes payloads in frame order</li>
+ * </ul>
+ * Payloads come from a fixed-size pool that bounds the number of frames in flight, when the
+ * writer falls behind {@link #submit(ReadbackSlot)} blocks until a payload is released. Jobs
+ * and queues are allocated once, moving a frame through the pipeline does not allocate.
+ * <p>
+ * Each stage records the time it spent working so that the bottleneck can be identified
+ * with {@link #logStatistics(long)}.
+ * <p>
+ * When deduplication is enabled, each submitted frame is hashed and a frame identical to the
+ * previous one skips conversion entirely, the writer asks the sink to
+ * {@link FrameSink#writeRepeated(Object, int) repeat} the last written payload instead.
+ */
+public class ExportPipeline<T> {
+
+    private final FrameSink<T> sink;
+    private final BlockingQueue<FrameJob<T>> freeJobs;
+    private final BlockingQueue<FrameJob<T>> conversionQueue;
+    private final BlockingQueue<FrameJob<T>> writeQueue;
+    private final FrameJob<T> endOfStream = new FrameJob<>(null);
+    private final Thread[] conversionThreads;
+    private final Thread writerThread;
+    private final IntConsumer progressListener;
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final Stage backpressureStage, conversionStage, writeStage, hashStage;
+    private final boolean deduplicateFrames;
+
+    private volatile Throwable failure;
+    private int submittedFrames;
+    private int writtenFrames;
+    private int duplicateFrames;
+    private long previousFrameHash;
+    private boolean hasPreviousFrame;
+    private FrameJob<T> lastWrittenJob;
+
+    /**
+     * @param deduplicateFrames whether to skip the conversion of frames identical to the previous one,
+     *                          ignored if the sink {@link FrameSink#keepsReadbackSlots() keeps slots}
+     * @param progressListener called from the writer thread with the number of frames written so far
+     */
+    public ExportPipeline(FrameSink<T> sink, int conversionThreadsCount, boolean deduplicateFrames, IntConsumer progressListener) {
+        if (conversionThreadsCount <= 0)
+            throw new IllegalArgumentException("At least one conversion thread is required");
+
+        this.sink = sink;
+        this.deduplicateFrames = deduplicateFrames && !sink.keepsReadbackSlots();
+        // when deduplicating, the writer holds one more job to repeat the last written payload
+        int poolSize = conversionThreadsCount * 2 + 2 + (this.deduplicateFrames ? 1 : 0);
+        this.progressListener = progressListener;
+        this.freeJobs = new ArrayBlockingQueue<>(poolSize);
+        this.conversionQueue = new ArrayBlockingQueue<>(poolSize + conversionThreadsCount); // + end of stream markers
+        this.writeQueue = new ArrayBlockingQueue<>(poolSize + 1);
+        for (int i = 0; i < poolSize; i++)
+            freeJobs.add(new FrameJob<>(sink.createPayload()));
+
+        this.conversionStage = new Stage("Conversion", conversionThreadsCount);
+        this.writeStage = new Stage("Writing", 1);
+        this.backpressureStage = new Stage("Waiting on writer", 1);
+        this.hashStage = new Stage("Hashing", 1);
+
+        this.conversionThreads = new Thread[conversionThreadsCount];
+        for (int i = 0; i < conversionThreadsCount; i++) {
+            conversionThreads[i] = new Thread(this::convertFrames, "Frame converter #" + (i+1));
+            conversionThreads[i].setDaemon(true);
+            conversionThreads[i].start();
+        }
+        this.writerThread = new Thread(this::writeFrames, "Frame writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Registers a stage timed by the caller to be reported by {@link #logStatistics(long)},
+     * before the pipeline's own stages.
+     */
+    public Stage addStage(String name, int parallelism) {
+        Stage stage = new Stage(name, parallelism);
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Hands a read back frame over to the conversion workers, the slot is released once
+     * converted, or once written if the sink {@link FrameSink#keepsReadbackSlots() keeps slots}.
+     * Frames must be submitted in order, from a single thread.
+     */
+    public void submit(ReadbackSlot slot) {
+        checkFailure();
+
+        long waitBegin = System.nanoTime();
+        FrameJob<T> job = takeUninterruptibly(freeJobs);
+        backpressureStage.record(System.nanoTime() - waitBegin);
+
+        job.slot = slot;
+        job.frame = slot.getTag();
+        job.converted = false;
+        job.duplicate = false;
+        job.failure = null;
+
+        if (deduplicateFrames) {
+            long hashBegin = System.nanoTime();
+            long hash = hashPixels(slot.getPixels());
+            job.duplicate = hasPreviousFrame && hash == previousFrameHash;
+            previousFrameHash = hash;
+            hasPreviousFrame = true;
+            hashStage.record(System.nanoTime() - hashBegin);
+        }
+
+        submittedFrames++;
+        if (job.duplicate) {
+            releaseSlot(job);
+            job.converted = true;
+            duplicateFrames++;
+            putUninterruptibly(writeQueue, job);
+            return;
+        }
+        putUninterruptibly(writeQueue, job);
+        putUninterruptibly(conversionQueue, job);
+    }
+
+    /**
+     * 64 bits multiply-xorshift hash of the whole buffer, read as longs. Collisions between two
+     * consecutive different frames are unlikely enough to be ignored.
+     */
+    private static long hashPixels(ByteBuffer pixels) {
+        long hash = pixels.remaining();
+        int longCount = pixels.remaining() / Long.BYTES;
+        for (int i = 0; i < longCount; i++) {
+            hash = (hash ^ pixels.getLong(i * Long.BYTES)) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+        }
+        for (int i = longCount * Long.BYTES; i < pixels.limit(); i++)
+            hash = (hash ^ pixels.get(i)) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Waits for every submitted frame to be written and closes the sink.
+     *
+     * @throws IllegalStateException if any frame could not be converted or written
+     */
+    public void finish() {
+        putUninterruptibly(writeQueue, endOfStream);
+        for (int i = 0; i < conversionThreads.length; i++)
+            putUninterruptibly(conversionQueue, endOfStream);
+        joinUninterruptibly(writerThread);
+        for (Thread thread : conversionThreads)
+            joinUninterruptibly(thread);
+        checkFailure();
+    }
+
+    private void convertFrames() {
+        while (true) {
+            FrameJob<T> job = takeUninterruptibly(conversionQueue);
+            if (job == endOfStream)
+                return;
+            long begin = System.nanoTime();
+            try {
+                sink.convert(job.slot, job.payload);
+            } catch (Throwable t) {
+                job.failure = t;
+            } finally {
+                if (!sink.keepsReadbackSlots())
+                    releaseSlot(job);
+            }
+            conversionStage.record(System.nanoTime() - begin);
+            synchronized (job) {
+                job.converted = true;
+                job.notifyAll();
+            }
+        }
+    }
+
+    private void writeFrames() {
+        try {
+            while (true) {
+                FrameJob<T> job = takeUninterruptibly(writeQueue);
+                if (job == endOfStream)
+                    break;
+                synchronized (job) {
+                    while (!job.converted) {
+                        try {
+                            job.wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+                // once failed, keep draining the queue so that the GL thread does not block on the jobs pool
+                if (job.failure != null && failure == null)
+                    failure = job.failure;
+                if (failure == null) {
+                    try {
+                        long begin = System.nanoTime();
+                        if (job.duplicate)
+                            sink.writeRepeated(lastWrittenJob.payload, job.frame);
+                        else
+                            sink.write(job.payload, job.frame);
+                        writeStage.record(System.nanoTime() - begin);
+                        progressListener.accept(++writtenFrames);
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                }
+                releaseSlot(job);
+                if (deduplicateFrames && !job.duplicate) {
+                    // keep the payload of the last written frame until another frame replaces it
+                    FrameJob<T> previous = lastWrittenJob;
+                    lastWrittenJob = job;
+                    job = previous;
+                }
+                if (job != null)
+                    putUninterruptibly(freeJobs, job);
+            }
+        } finally {
+            // closed even after a failure so that the output is not left open
+            try {
+                sink.close();
+            } catch (Throwable t) {
+                if (failure == null)
+                    failure = t;
+                else
+                    failure.addSuppressed(t);
+            }
+        }
+    }
+
+    private static void releaseSlot(FrameJob<?> job) {
+        if (job.slot != null) {
+            job.slot.release();
+            job.slot = null;
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null)
+            throw new IllegalStateException("Could not export frame: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * Logs the time spent in each stage and the framerate each stage could sustain on its own.
+     *
+     * @param totalNanos the wall-clock duration of the whole export
+     */
+    public void logStatistics(long totalNanos) {
+        Main.logger.info(String.format("Exported %d frames in %.2fs (%.1f fps)",
+                submittedFrames, totalNanos / 1E9, submittedFrames * 1E9 / totalNanos));
+        for (Stage stage : stages)
+            Main.logger.info("  " + stage);
+        if (deduplicateFrames)
+            Main.logger.info("  " + hashStage);
+        Main.logger.info("  " + conversionStage);
+        Main.logger.info("  " + writeStage);
+        Main.logger.info("  " + backpressureStage);
+        if (deduplicateFrames) {
+            int convertedFrames = conversionStage.frames.get();
+            double savedNanos = convertedFrames == 0 ? 0 : (double) conversionStage.busyNanos.get() / convertedFrames * duplicateFrames;
+            Main.logger.info(String.format("Deduplicated %d of %d frames, skipping about %.2fs of conversion",
+                    duplicateFrames, submittedFrames, savedNanos / 1E9));
+        }
+    }
+
+    private static <E> E takeUninterruptibly(BlockingQueue<E> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static <E> void putUninterruptibly(BlockingQueue<E> queue, E element) {
+        while (true) {
+            try {
+                queue.put(element);
+                return;
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static class FrameJob<T> {
+
+        final T payload;
+        ReadbackSlot slot;
+        int frame;
+        boolean converted;
+        boolean duplicate;
+        Throwable failure;
+
+        FrameJob(T payload) {
+            this.payload = payload;
+        }
+
+    }
+
+    /**
+     * Accumulates the time spent by one pipeline stage, may be updated from any thread.
+     */
+    public static class Stage {
+
+        private final String name;
+        private final int parallelism;
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicInteger frames = new AtomicInteger();
+
+        public Stage(String name, int parallelism) {
+            this.name = name;
+            this.parallelism = parallelism;
+        }
+
+        public void record(long nanos) {
+            busyNanos.addAndGet(nanos);
+            frames.incrementAndGet();
+        }
+
+        /**
+         * Records the total duration of a stage timed elsewhere.
+         */
+        public void recordTotal(long nanos, int frameCount) {
+            busyNanos.addAndGet(nanos);
+            frames.addAndGet(frameCount);
+        }
+
+        @Override
+        public String toString() {
+            long nanos = busyNanos.get();
+            int count = frames.get();
+            double wallNanos = (double) nanos / parallelism;
+            String fps = nanos == 0 ? "-" : String.format("%.1f", count * 1E9 / wallNanos);
+            return String.format("%-18s %8.2fs busy over %d thread%s, %6.2fms/frame, %s fps",
+                    name, nanos / 1E9, parallelism, parallelism > 1 ? "s" : "",
+                    count == 0 ? 0 : nanos / 1E6 / count, fps);
+        }
+    }
+
+}
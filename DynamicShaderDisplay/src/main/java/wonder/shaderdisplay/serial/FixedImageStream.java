@@ -11,14 +11,26 @@ import java.io.IOException;
 class FixedImageStream implements InputImageStream {
 
     private final File file;
+    private final DecodedImage decodedImage;
     private Texture texture;
 
     public FixedImageStream(File textureFile) {
         this.file = textureFile;
+        this.decodedImage = null;
+    }
+
+    /**
+     * Uses an image already decoded instead of reading its file.
+     */
+    public FixedImageStream(DecodedImage decodedImage) {
+        this.file = decodedImage.file();
+        this.decodedImage = decodedImage;
     }
 
     @Override
     public int[] getImageResolution() throws BadInitException {
+        if (decodedImage != null)
+            return new int[]{decodedImage.width(), decodedImage.height()};
         try {
             BufferedImage img = ImageIO.read(file);
             return new int[]{img.getWidth(), img.getHeight()};
@@ -29,6 +41,10 @@ class FixedImageStream implements InputImageStream {
 
     @Override
     public void startReading() throws BadInitException {
+        if (decodedImage != null) {
+            this.texture = new Texture(decodedImage.width(), decodedImage.height(), decodedImage.pixels());
+            return;
+        }
         this.texture = Texture.loadTexture(file);
         if (texture == Texture.getMissingTexture())
             throw new BadInitException("Could not load texture from '" + file.getAbsolutePath() + "'");
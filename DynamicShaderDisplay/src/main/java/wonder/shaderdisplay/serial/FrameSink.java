@@ -0,0 +1,56 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.display.TextureReadbackRing.ReadbackSlot;
+
+/**
+ * Final stage of an {@link ExportPipeline}, turns read back frames into an output.
+ * <p>
+ * Payloads are the intermediate representation of a frame, they are allocated once by the
+ * pipeline and reused for the whole export.
+ *
+ * @param <T> the payload type
+ */
+public interface FrameSink<T> {
+
+    /**
+     * Whether {@link #write(Object, int)} reads the pixels of the slot given to
+     * {@link #convert(ReadbackSlot, Object)}. When set, the pipeline releases slots only once
+     * their frame is written instead of once converted.
+     */
+    default boolean keepsReadbackSlots() {
+        return false;
+    }
+
+    /**
+     * Called by the pipeline when filling its payload pool, before any frame is submitted.
+     */
+    T createPayload();
+
+    /**
+     * Converts the pixels of a read back frame into a payload. Called from conversion workers,
+     * frames may be converted concurrently and out of order so implementations must not share
+     * mutable state between calls.
+     */
+    void convert(ReadbackSlot frame, T payload);
+
+    /**
+     * Writes a converted payload. Called from the writer thread only, in frame order.
+     */
+    void write(T payload, int frame);
+
+    /**
+     * Writes a frame identical to the previous one, {@code previousPayload} is the payload last given
+     * to {@link #write(Object, int)}. By default the payload is written again under the new frame
+     * number, sinks may override this to repeat the frame more cheaply.
+     */
+    default void writeRepeated(T previousPayload, int frame) {
+        write(previousPayload, frame);
+    }
+
+    /**
+     * Called from the writer thread once every frame has been written, or after a frame could
+     * not be converted or written.
+     */
+    void close();
+
+}
@@ -0,0 +1,134 @@
+package wonder.shaderdisplay.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a list of images ahead of their consumer with a pool of threads.
+ * <p>
+ * At most {@code lookahead} images are decoded ahead of the one being consumed, and decoded
+ * pixels are bounded by a {@link MemoryBudget} that the consumer gives back with
+ * {@link #release(DecodedImage)} once an image is uploaded. The budget is reserved from the image
+ * header before decoding, in list order so that the next image to be consumed can never be
+ * starved by images further ahead. Files can be appended to the list with {@link #submit(File)}.
+ */
+public class ImagePrefetcher {
+
+    private final List<File> files;
+    private final int lookahead;
+    private final MemoryBudget budget;
+    private final ExecutorService decoders;
+    private final Queue<Future<DecodedImage>> pending = new ArrayDeque<>();
+    private final ExportPipeline.Stage decodeStage;
+
+    private final Object acquisitionOrder = new Object();
+    private int nextAcquisition;
+    private int submitted;
+
+    public ImagePrefetcher(List<File> files, int threadCount, int lookahead, MemoryBudget budget) {
+        if (threadCount <= 0 || lookahead <= 0)
+            throw new IllegalArgumentException("At least one decoding thread and one image ahead are required");
+        this.files = new ArrayList<>(files);
+        this.lookahead = lookahead;
+        this.budget = budget;
+        this.decodeStage = new ExportPipeline.Stage("Decoding", threadCount);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.decoders = Executors.newFixedThreadPool(threadCount, r -> {
+            Thread thread = new Thread(r, "Image decoder #" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        fillLookahead();
+    }
+
+    /**
+     * Waits for the next image of the list to be decoded.
+     *
+     * @throws IOException if the image could not be decoded
+     */
+    public DecodedImage next() throws IOException {
+        Future<DecodedImage> next = pending.remove();
+        fillLookahead();
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while decoding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Appends a file to decode after the ones already given.
+     */
+    public void submit(File file) {
+        files.add(file);
+        fillLookahead();
+    }
+
+    public boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Gives the memory of a decoded image back, once it is not needed anymore.
+     */
+    public void release(DecodedImage image) {
+        budget.release(image.getSizeInBytes());
+    }
+
+    public ExportPipeline.Stage getDecodeStage() {
+        return decodeStage;
+    }
+
+    public void close() {
+        decoders.shutdownNow();
+    }
+
+    private void fillLookahead() {
+        while (pending.size() < lookahead && submitted < files.size()) {
+            int index = submitted++;
+            File file = files.get(index);
+            pending.add(decoders.submit(() -> decode(index, file)));
+        }
+    }
+
+    private DecodedImage decode(int index, File file) throws IOException, InterruptedException {
+        long reservedBytes;
+        synchronized (acquisitionOrder) {
+            while (nextAcquisition != index)
+                acquisitionOrder.wait();
+        }
+        try {
+            reservedBytes = DecodedImage.readSizeInBytes(file);
+            budget.acquire(reservedBytes);
+        } finally {
+            synchronized (acquisitionOrder) {
+                nextAcquisition++;
+                acquisitionOrder.notifyAll();
+            }
+        }
+
+        long begin = System.nanoTime();
+        try {
+            DecodedImage image = DecodedImage.decode(file);
+            if (image.getSizeInBytes() != reservedBytes)
+                throw new IOException("The image size does not match its header");
+            return image;
+        } catch (IOException | RuntimeException e) {
+            budget.release(reservedBytes);
+            throw e;
+        } finally {
+            decodeStage.record(System.nanoTime() - begin);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package wonder.shaderdisplay.serial;
+
+import fr.wonder.commons.files.FilesUtils;
+import wonder.shaderdisplay.display.FrameConversionPass;
+import wonder.shaderdisplay.display.TextureReadbackRing.ReadbackSlot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes each frame to its own numbered file. Frames are expected to be read back as BGRA from a
+ * {@link FrameConversionPass}, they are encoded by the pipeline workers and written to disk by
+ * the writer thread.
+ */
+public class ImageSequenceFrameSink implements FrameSink<ImageSequenceFrameSink.EncodedFrame> {
+
+    public static final String FRAME_NUMBER_PATTERN = "{}";
+
+    public enum ImageFormat {
+
+        /** Compressed with a tunable deflate level, keeps alpha */
+        PNG,
+        /** Binary PPM (P6), uncompressed RGB */
+        PPM,
+        /** Uncompressed BGRA bytes without any header, rows ordered top to bottom */
+        RAW;
+
+        public static ImageFormat fromFile(File file) {
+            String extension = FilesUtils.getFileExtension(file).toUpperCase();
+            for (ImageFormat format : values()) {
+                if (format.name().equals(extension))
+                    return format;
+            }
+            return null;
+        }
+    }
+
+    private final String pathPattern;
+    private final int width, height;
+    private final ImageFormat format;
+    private final byte[] ppmHeader;
+    private final PngEncoder pngEncoder;
+    private final ThreadLocal<int[]> pngPixels;
+
+    /**
+     * @param pathPattern      output path, {@link #FRAME_NUMBER_PATTERN} is replaced by the frame number
+     * @param compressionLevel deflate level from 0 (fastest) to 9 (smallest), only used by PNG
+     */
+    public ImageSequenceFrameSink(String pathPattern, int width, int height, ImageFormat format, boolean keepAlpha, int compressionLevel) {
+        this.pathPattern = pathPattern;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.ppmHeader = ("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII);
+        this.pngEncoder = new PngEncoder(width, height, keepAlpha, compressionLevel);
+        this.pngPixels = ThreadLocal.withInitial(() -> new int[width*height]);
+    }
+
+    public static boolean isSequencePattern(String path) {
+        return path.contains(FRAME_NUMBER_PATTERN);
+    }
+
+    /**
+     * Frame numbers are padded to a fixed width so that sequences written in several parts
+     * sort correctly.
+     */
+    public static File getFrameFile(String pathPattern, int frame) {
+        return new File(pathPattern.replace(FRAME_NUMBER_PATTERN, String.format("%05d", frame)));
+    }
+
+    @Override
+    public EncodedFrame createPayload() {
+        return new EncodedFrame();
+    }
+
+    @Override
+    public void convert(ReadbackSlot frame, EncodedFrame payload) {
+        ByteBuffer pixels = frame.getPixels();
+        switch (format) {
+        case RAW -> {
+            payload.reset();
+            payload.ensureCapacity(width*height*4);
+            pixels.get(0, payload.bytes(), 0, width*height*4);
+            payload.setLength(width*height*4);
+        }
+        case PPM -> {
+            int size = ppmHeader.length + width*height*3;
+            payload.reset();
+            payload.ensureCapacity(size);
+            byte[] bytes = payload.bytes();
+            System.arraycopy(ppmHeader, 0, bytes, 0, ppmHeader.length);
+            for (int i = 0, o = ppmHeader.length; i < width*height*4; i += 4, o += 3) {
+                bytes[o  ] = pixels.get(i+2);
+                bytes[o+1] = pixels.get(i+1);
+                bytes[o+2] = pixels.get(i  );
+            }
+            payload.setLength(size);
+        }
+        case PNG -> {
+            int[] argbPixels = pngPixels.get();
+            pixels.asIntBuffer().get(argbPixels);
+            payload.reset();
+            try {
+                pngEncoder.encode(argbPixels, 0, width, payload);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        }
+    }
+
+    @Override
+    public void write(EncodedFrame payload, int frame) {
+        File file = getFrameFile(pathPattern, frame);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            payload.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write '" + file + "'", e);
+        }
+    }
+
+    @Override
+    public void close() {}
+
+    /**
+     * A reusable buffer holding the encoded file content.
+     */
+    public static class EncodedFrame extends ByteArrayOutputStream {
+
+        private byte[] bytes() {
+            return buf;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (buf.length < capacity)
+                buf = new byte[capacity];
+        }
+
+        private void setLength(int length) {
+            count = length;
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.Main;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Encodes and writes images with a pool of threads, behind the thread that renders them.
+ * Pixels waiting to be written are bounded by a {@link MemoryBudget}, {@link #submit} blocks
+ * when the writers fall behind.
+ * <p>
+ * Images are written to a hidden temporary file next to their destination and renamed once
+ * complete, so that a process watching the output directory never sees a partial image.
+ */
+public class ImageWriterPool {
+
+    private final ExecutorService writers;
+    private final MemoryBudget budget;
+    private final ExportPipeline.Stage writeStage;
+    private final ExportPipeline.Stage backpressureStage = new ExportPipeline.Stage("Waiting on writers", 1);
+    private final AtomicInteger failures = new AtomicInteger();
+    private final int pngCompressionLevel;
+
+    /**
+     * @param pngCompressionLevel deflate level of png images, from 0 (fastest) to 9 (smallest)
+     */
+    public ImageWriterPool(int threadCount, MemoryBudget budget, int pngCompressionLevel) {
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("At least one writer thread is required");
+        this.budget = budget;
+        this.pngCompressionLevel = pngCompressionLevel;
+        this.writeStage = new ExportPipeline.Stage("Encoding", threadCount);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(threadCount, r -> {
+            Thread thread = new Thread(r, "Image writer #" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void submit(File outputFile, String imageFormat, int width, int height, int[] pixels) {
+        submit(outputFile, imageFormat, width, height, pixels, null);
+    }
+
+    /**
+     * Queues an image to be written, takes ownership of {@code pixels}.
+     *
+     * @param pixels argb pixels as read back from opengl, rows ordered bottom to top
+     * @param onWritten called from the writer thread once the image is written, may be null
+     */
+    public void submit(File outputFile, String imageFormat, int width, int height, int[] pixels, Consumer<File> onWritten) {
+        // the pixels and the intermediate image
+        long reservedBytes = (long) width * height * (Integer.BYTES + 3);
+        long waitBegin = System.nanoTime();
+        try {
+            budget.acquire(reservedBytes);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted while waiting for an image writer", e);
+        }
+        backpressureStage.record(System.nanoTime() - waitBegin);
+
+        writers.execute(() -> {
+            long begin = System.nanoTime();
+            File tempFile = getTempFile(outputFile);
+            try {
+                if ("PNG".equals(imageFormat)) {
+                    new PngEncoder(width, height, false, pngCompressionLevel).write(tempFile, pixels, width*(height-1), -width);
+                } else {
+                    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+                    image.setRGB(0, 0, width, height, pixels, width*(height-1), -width);
+                    if (!ImageIO.write(image, imageFormat, tempFile))
+                        throw new IOException("No writer for format " + imageFormat);
+                }
+                moveAtomically(tempFile, outputFile);
+                Main.logger.info("Wrote '" + outputFile.getPath() + "'");
+                if (onWritten != null)
+                    onWritten.accept(outputFile);
+            } catch (IOException | RuntimeException e) {
+                failures.incrementAndGet();
+                tempFile.delete();
+                Main.logger.err(e, "Could not write file '" + outputFile.getPath() + "'");
+            } finally {
+                budget.release(reservedBytes);
+                writeStage.record(System.nanoTime() - begin);
+            }
+        });
+    }
+
+    /**
+     * Waits for every queued image to be written.
+     */
+    public void finish() {
+        writers.shutdown();
+        try {
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted while waiting for the image writers", e);
+        }
+    }
+
+    /**
+     * @return a hidden file next to {@code destination}, to be renamed once complete
+     */
+    static File getTempFile(File destination) {
+        return new File(destination.getAbsoluteFile().getParentFile(), "." + destination.getName() + ".tmp");
+    }
+
+    static void moveAtomically(File source, File destination) throws IOException {
+        try {
+            Files.move(source.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public int getFailuresCount() {
+        return failures.get();
+    }
+
+    public ExportPipeline.Stage getWriteStage() {
+        return writeStage;
+    }
+
+    public ExportPipeline.Stage getBackpressureStage() {
+        return backpressureStage;
+    }
+
+}
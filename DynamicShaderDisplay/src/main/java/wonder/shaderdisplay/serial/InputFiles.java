@@ -53,6 +53,20 @@ public class InputFiles {
         }
     }
 
+    /**
+     * Creates inputs holding a single image that was already decoded.
+     */
+    public InputFiles(DecodedImage image) {
+        streams.add(new FixedImageStream(image));
+    }
+
+    /**
+     * Creates inputs holding the images of batched passes.
+     */
+    public InputFiles(BatchedInputImages batch) {
+        streams.add(batch);
+    }
+
     public int[] getFirstInputFileResolution() throws BadInitException {
         return streams.isEmpty() ? null : streams.get(0).getImageResolution();
     }
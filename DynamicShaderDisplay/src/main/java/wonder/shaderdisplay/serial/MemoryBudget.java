@@ -0,0 +1,29 @@
+package wonder.shaderdisplay.serial;
+
+/**
+ * Bounds the memory held by buffers in flight between threads. A request larger than the whole
+ * budget is granted once nothing else is held so that it cannot block forever.
+ */
+public class MemoryBudget {
+
+    private final long capacity;
+    private long used;
+
+    public MemoryBudget(long capacityInBytes) {
+        if (capacityInBytes <= 0)
+            throw new IllegalArgumentException("The memory budget must be >0");
+        this.capacity = capacityInBytes;
+    }
+
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (used != 0 && used + bytes > capacity)
+            wait();
+        used += bytes;
+    }
+
+    public synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,203 @@
+package wonder.shaderdisplay.serial;
+
+import io.humble.ferry.Buffer;
+import io.humble.video.*;
+import wonder.shaderdisplay.display.FrameConversionPass;
+import wonder.shaderdisplay.display.TextureReadbackRing.ReadbackSlot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+/**
+ * Encodes frames into an mp4 file, or into several files with {@link #segmented segmented}. Frames are expected to come from a {@link FrameConversionPass},
+ * either already converted to YUV420P or as BGRA pixels converted by the native resampler.
+ * <p>
+ * Pixels are copied once, from the readback buffer straight into the native picture buffers.
+ */
+public class Mp4FrameSink implements FrameSink<Mp4FrameSink.PooledPicture> {
+
+    private final int width, height;
+    private final int firstFrame;
+    private final int segmentLength;
+    private final IntFunction<File> segmentFiles;
+    private final FrameConversionPass.OutputFormat inputFormat;
+    private final Rational timeBase;
+    private final MediaPacket packet = MediaPacket.make();
+    private Muxer muxer;
+    private Encoder encoder;
+
+    public Mp4FrameSink(File outputFile, int width, int height, float framerate, int firstFrame, FrameConversionPass.OutputFormat inputFormat) {
+        this(frame -> outputFile, 0, width, height, framerate, firstFrame, inputFormat);
+        openFile(outputFile);
+    }
+
+    private Mp4FrameSink(IntFunction<File> segmentFiles, int segmentLength, int width, int height, float framerate, int firstFrame, FrameConversionPass.OutputFormat inputFormat) {
+        this.width = width;
+        this.height = height;
+        this.firstFrame = firstFrame;
+        this.segmentLength = segmentLength;
+        this.segmentFiles = segmentFiles;
+        this.inputFormat = inputFormat;
+        this.timeBase = Rational.make(1 / framerate);
+    }
+
+    /**
+     * Creates a sink that splits the video in files of {@code segmentLength} frames, the first
+     * segment starts at {@code firstFrame}. Each segment is closed as soon as its last frame is
+     * written and its timestamps start at 0, see {@link VideoConcatenation} to join them.
+     *
+     * @param segmentFiles gives the file of the segment starting at a frame
+     */
+    public static Mp4FrameSink segmented(IntFunction<File> segmentFiles, int segmentLength, int width, int height, float framerate, int firstFrame, FrameConversionPass.OutputFormat inputFormat) {
+        if (segmentLength <= 0)
+            throw new IllegalArgumentException("Segments must hold at least one frame");
+        return new Mp4FrameSink(segmentFiles, segmentLength, width, height, framerate, firstFrame, inputFormat);
+    }
+
+    private void openFile(File outputFile) {
+        muxer = Muxer.make(outputFile.getAbsolutePath(), null, "mp4");
+        MuxerFormat format = muxer.getFormat();
+        Codec codec = Codec.findEncodingCodec(format.getDefaultVideoCodecId());
+        encoder = Encoder.make(codec);
+
+        encoder.setWidth(width);
+        encoder.setHeight(height);
+        encoder.setPixelFormat(PixelFormat.Type.PIX_FMT_YUV420P);
+        encoder.setTimeBase(timeBase);
+
+        if (format.getFlag(MuxerFormat.Flag.GLOBAL_HEADER))
+            encoder.setFlag(Encoder.Flag.FLAG_GLOBAL_HEADER, true);
+
+        encoder.open(null, null);
+        muxer.addNewStream(encoder);
+        try {
+            muxer.open(null, null);
+        } catch (InterruptedException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeFile() {
+        encode(null);
+        muxer.close();
+        muxer = null;
+        encoder = null;
+    }
+
+    private int getSegmentFirstFrame(int frame) {
+        return segmentLength == 0 ? firstFrame : firstFrame + Math.floorDiv(frame - firstFrame, segmentLength) * segmentLength;
+    }
+
+    @Override
+    public PooledPicture createPayload() {
+        return new PooledPicture();
+    }
+
+    @Override
+    public void convert(ReadbackSlot frame, PooledPicture payload) {
+        ByteBuffer pixels = frame.getPixels();
+        long timestamp = frame.getTag() - getSegmentFirstFrame(frame.getTag());
+
+        if (inputFormat == FrameConversionPass.OutputFormat.YUV420P) {
+            copyPlane(pixels, 0, width, payload.planes[0], payload.lineSizes[0], width, height);
+            copyPlane(pixels, width*height, width/2, payload.planes[1], payload.lineSizes[1], width/2, height/2);
+            copyPlane(pixels, width*height + width*height/4, width/2, payload.planes[2], payload.lineSizes[2], width/2, height/2);
+        } else {
+            copyPlane(pixels, 0, width*4, payload.bgraData, payload.bgraLineSize, width*4, height);
+            payload.bgraPicture.setTimeStamp(timestamp);
+            payload.bgraPicture.setComplete(true);
+            payload.resampler.resample(payload.picture, payload.bgraPicture);
+        }
+        payload.picture.setTimeStamp(timestamp);
+        payload.picture.setComplete(true);
+    }
+
+    private static void copyPlane(ByteBuffer source, int sourceOffset, int sourceStride, ByteBuffer destination, int destinationStride, int rowLength, int rowCount) {
+        if (sourceStride == destinationStride && rowLength == sourceStride) {
+            destination.put(0, source, sourceOffset, rowLength * rowCount);
+            return;
+        }
+        for (int y = 0; y < rowCount; y++)
+            destination.put(y * destinationStride, source, sourceOffset + y * sourceStride, rowLength);
+    }
+
+    private static ByteBuffer getPlaneBuffer(MediaPicture picture, int plane) {
+        Buffer data = picture.getData(plane);
+        return data.getByteBuffer(0, data.getBufferSize());
+    }
+
+    @Override
+    public void write(PooledPicture payload, int frame) {
+        if (muxer == null)
+            openFile(segmentFiles.apply(getSegmentFirstFrame(frame)));
+        encode(payload.picture);
+        if (segmentLength != 0 && (frame + 1 - firstFrame) % segmentLength == 0)
+            closeFile();
+    }
+
+    @Override
+    public void writeRepeated(PooledPicture previousPayload, int frame) {
+        // the encoder keeps its own reference to the frames it was given, the picture can be sent again
+        previousPayload.picture.setTimeStamp(frame - getSegmentFirstFrame(frame));
+        write(previousPayload, frame);
+    }
+
+    @Override
+    public void close() {
+        if (muxer != null)
+            closeFile();
+    }
+
+    private void encode(MediaPicture picture) {
+        do {
+            encoder.encode(packet, picture);
+            if (packet.isComplete())
+                muxer.write(packet, false);
+        } while (packet.isComplete());
+    }
+
+    /**
+     * A YUV420P picture along with views of its native buffers, and when frames are read back
+     * as BGRA, an intermediate picture and the resampler converting it.
+     */
+    public class PooledPicture {
+
+        private final MediaPicture picture;
+        private final ByteBuffer[] planes = new ByteBuffer[3];
+        private final int[] lineSizes = new int[3];
+
+        private final MediaPicture bgraPicture;
+        private final ByteBuffer bgraData;
+        private final int bgraLineSize;
+        private final MediaPictureResampler resampler;
+
+        private PooledPicture() {
+            picture = MediaPicture.make(width, height, PixelFormat.Type.PIX_FMT_YUV420P);
+            picture.setTimeBase(timeBase);
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = getPlaneBuffer(picture, i);
+                lineSizes[i] = picture.getLineSize(i);
+            }
+
+            if (inputFormat == FrameConversionPass.OutputFormat.BGRA) {
+                bgraPicture = MediaPicture.make(width, height, PixelFormat.Type.PIX_FMT_BGRA);
+                bgraPicture.setTimeBase(timeBase);
+                bgraData = getPlaneBuffer(bgraPicture, 0);
+                bgraLineSize = bgraPicture.getLineSize(0);
+                resampler = MediaPictureResampler.make(
+                        width, height, PixelFormat.Type.PIX_FMT_YUV420P,
+                        width, height, PixelFormat.Type.PIX_FMT_BGRA, 0);
+                resampler.open();
+            } else {
+                bgraPicture = null;
+                bgraData = null;
+                bgraLineSize = 0;
+                resampler = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,207 @@
+package wonder.shaderdisplay.serial;
+
+import fr.wonder.commons.files.FilesUtils;
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.scene.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps copies of rendered images keyed by everything that can change them, so that re-running
+ * a pass only renders the inputs that changed.
+ * <p>
+ * The key combines the fully resolved shader sources (after includes and macro injection), the
+ * scene file, the default uniform values, the render options and the content of the inputs.
+ * Textures and meshes loaded by path are not part of the key, the cache must be cleared when
+ * they change. Entries are evicted least recently used first once the cache grows over its size.
+ */
+public class OutputCache {
+
+    private final File directory;
+    private final long maxSize;
+    private final Map<String, CachedFile> entries = new LinkedHashMap<>(16, .75f, true);
+    private long size;
+
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+    private final AtomicInteger stores = new AtomicInteger(), evictions = new AtomicInteger();
+
+    public OutputCache(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory.toPath());
+
+        File[] files = directory.listFiles(f -> f.isFile() && !f.getName().startsWith("."));
+        if (files == null)
+            throw new IOException("Could not list '" + directory + "'");
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            entries.put(file.getName(), new CachedFile(file, file.length()));
+            size += file.length();
+        }
+        Main.logger.debug(String.format("Output cache holds %d files, %.1fMB", entries.size(), size / 1E6));
+    }
+
+    /**
+     * Hashes everything that affects the rendered image but the inputs.
+     *
+     * @param renderOptions any value changing how the scene is rendered, output size, frame...
+     */
+    public static String hashSceneState(Scene scene, Object... renderOptions) throws IOException {
+        MessageDigest digest = newDigest();
+        if (scene.sourceFile != null)
+            updateWithFile(digest, scene.sourceFile);
+        for (SceneLayer layer : scene.layers) {
+            updateWithString(digest, layer.getClass().getSimpleName() + ':' + layer.enabled);
+            if (layer instanceof CompilableLayer compilable) {
+                for (String source : compilable.getCompiledShaders().resolvedSources)
+                    updateWithString(digest, source == null ? "" : source);
+            }
+            if (layer instanceof RenderableLayer renderable) {
+                for (UniformDefaultValue value : renderable.getDefaultUniformValues())
+                    updateWithString(digest, value.name + '=' + value.value);
+            }
+        }
+        for (Object option : renderOptions)
+            updateWithString(digest, String.valueOf(option));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param inputFiles the inputs rendered with the scene, their content is hashed
+     */
+    public static String getKey(String sceneHash, File... inputFiles) throws IOException {
+        MessageDigest digest = newDigest();
+        updateWithString(digest, sceneHash);
+        for (File input : inputFiles)
+            updateWithFile(digest, input);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Copies the cached image to {@code outputFile} if there is one.
+     *
+     * @return true if the output was restored from the cache
+     */
+    public boolean tryRestore(String key, File outputFile) {
+        String entryName = getEntryName(key, outputFile);
+        CachedFile entry;
+        synchronized (this) {
+            entry = entries.get(entryName);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        File tempFile = ImageWriterPool.getTempFile(outputFile);
+        try {
+            Files.copy(entry.file().toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            ImageWriterPool.moveAtomically(tempFile, outputFile);
+            entry.file().setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+            tempFile.delete();
+            Main.logger.warn("Could not restore '" + outputFile + "' from the cache: " + e.getMessage());
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        Main.logger.info("Restored '" + outputFile.getPath() + "' from the cache");
+        return true;
+    }
+
+    /**
+     * Adds a copy of an output that was just written to the cache, may be called from any thread.
+     */
+    public void store(String key, File outputFile) {
+        String entryName = getEntryName(key, outputFile);
+        File cachedFile = new File(directory, entryName);
+        File tempFile = ImageWriterPool.getTempFile(cachedFile);
+        try {
+            Files.copy(outputFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            ImageWriterPool.moveAtomically(tempFile, cachedFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            Main.logger.warn("Could not add '" + outputFile + "' to the cache: " + e.getMessage());
+            return;
+        }
+        stores.incrementAndGet();
+
+        List<File> evictedFiles = new ArrayList<>();
+        synchronized (this) {
+            CachedFile previous = entries.put(entryName, new CachedFile(cachedFile, cachedFile.length()));
+            if (previous != null)
+                size -= previous.size();
+            size += cachedFile.length();
+            Iterator<CachedFile> iterator = entries.values().iterator();
+            while (size > maxSize && entries.size() > 1) {
+                CachedFile evicted = iterator.next();
+                iterator.remove();
+                size -= evicted.size();
+                evictedFiles.add(evicted.file());
+            }
+        }
+        for (File evicted : evictedFiles)
+            evicted.delete();
+        evictions.addAndGet(evictedFiles.size());
+    }
+
+    @Override
+    public String toString() {
+        int hitCount = hits.get(), missCount = misses.get();
+        int lookups = hitCount + missCount;
+        synchronized (this) {
+            return String.format("Output cache: %d hits, %d misses (%.0f%% hit rate), %d stored, %d evicted, %.1fMB in %d files",
+                    hitCount, missCount, lookups == 0 ? 0 : 100. * hitCount / lookups,
+                    stores.get(), evictions.get(), size / 1E6, entries.size());
+        }
+    }
+
+    private static String getEntryName(String key, File outputFile) {
+        // the format is part of the name since the same render can be written in several formats
+        return key + '.' + FilesUtils.getFileExtension(outputFile).toLowerCase();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void updateWithString(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static void updateWithFile(MessageDigest digest, File file) throws IOException {
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(file.length()).array());
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private record CachedFile(File file, long size) {
+
+    }
+
+}
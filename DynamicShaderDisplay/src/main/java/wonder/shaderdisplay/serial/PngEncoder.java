@@ -0,0 +1,267 @@
+package wonder.shaderdisplay.serial;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes 8 bits png images straight from packed argb pixels, compressing independent slices of
+ * rows on several threads.
+ * <p>
+ * Each slice is deflated on its own and ends on a byte boundary with a sync flush, the slices are
+ * then concatenated into a single zlib stream. A slice uses the end of the previous one as its
+ * preset dictionary so that splitting the image costs little compression. The adler32 checksums
+ * of the slices are combined instead of being computed again over the whole image.
+ * <p>
+ * Rows use the 'sub' filter, like {@link StreamingPngWriter}.
+ */
+public class PngEncoder {
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    static final byte FILTER_SUB = 1;
+    /** Slices smaller than this are not worth a thread */
+    private static final int MIN_SLICE_SIZE = 256 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private final int width, height;
+    private final boolean keepAlpha;
+    private final int compressionLevel;
+    private final int bytesPerPixel, rowSize;
+
+    /**
+     * @param keepAlpha        write rgba pixels, rgb otherwise
+     * @param compressionLevel deflate level from 0 (fastest) to 9 (smallest)
+     */
+    public PngEncoder(int width, int height, boolean keepAlpha, int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9)
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+        this.width = width;
+        this.height = height;
+        this.keepAlpha = keepAlpha;
+        this.compressionLevel = compressionLevel;
+        this.bytesPerPixel = keepAlpha ? 4 : 3;
+        this.rowSize = 1 + width * bytesPerPixel;
+    }
+
+    /**
+     * @see #encode(int[], int, int, OutputStream)
+     */
+    public void write(File file, int[] argbPixels, int offset, int stride) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            encode(argbPixels, offset, stride, out);
+        }
+    }
+
+    /**
+     * Encodes a whole image, this can be called from several threads at once.
+     *
+     * @param argbPixels pixels packed as in {@link java.awt.image.BufferedImage#TYPE_INT_ARGB}
+     * @param offset     index of the first pixel of the top row
+     * @param stride     distance between rows, negative for images read back from opengl whose
+     *                   rows are ordered bottom to top
+     */
+    public void encode(int[] argbPixels, int offset, int stride, OutputStream out) throws IOException {
+        byte[] filteredRows = new byte[height * rowSize];
+        int sliceCount = (int) Math.max(1, Math.min(DeflateThreads.COUNT, (long) filteredRows.length / MIN_SLICE_SIZE));
+        int rowsPerSlice = (height + sliceCount - 1) / sliceCount;
+        sliceCount = (height + rowsPerSlice - 1) / rowsPerSlice;
+
+        List<Callable<Long>> filterTasks = new ArrayList<>(sliceCount);
+        List<Callable<byte[]>> deflateTasks = new ArrayList<>(sliceCount);
+        for (int s = 0; s < sliceCount; s++) {
+            int firstRow = s * rowsPerSlice;
+            int lastRow = Math.min(height, firstRow + rowsPerSlice);
+            boolean isLastSlice = s == sliceCount - 1;
+            filterTasks.add(() -> filterRows(argbPixels, offset, stride, filteredRows, firstRow, lastRow));
+            deflateTasks.add(() -> deflateRows(filteredRows, firstRow * rowSize, lastRow * rowSize, isLastSlice));
+        }
+        // slices use the previous one as their dictionary, every row must be filtered first
+        List<Long> checksums = runAll(filterTasks);
+        List<byte[]> slices = runAll(deflateTasks);
+
+        long adler = 1;
+        for (int s = 0; s < sliceCount; s++) {
+            long sliceLength = (long) (Math.min(height, (s + 1) * rowsPerSlice) - s * rowsPerSlice) * rowSize;
+            adler = combineAdler32(adler, checksums.get(s), sliceLength);
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        writeHeader(data, width, height, keepAlpha);
+
+        writeChunk(data, "IDAT", getZlibHeader());
+        for (byte[] slice : slices)
+            writeChunk(data, "IDAT", slice);
+        writeChunk(data, "IDAT", ByteBuffer.allocate(Integer.BYTES).putInt((int) adler).array());
+        writeChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    /**
+     * @return the adler32 checksum of the filtered rows
+     */
+    private long filterRows(int[] argbPixels, int offset, int stride, byte[] filteredRows, int firstRow, int lastRow) {
+        byte[] rawRow = new byte[width * bytesPerPixel];
+        for (int y = firstRow; y < lastRow; y++) {
+            int rowOffset = offset + y * stride;
+            for (int x = 0, i = 0; x < width; x++) {
+                int argb = argbPixels[rowOffset + x];
+                rawRow[i++] = (byte) (argb >> 16);
+                rawRow[i++] = (byte) (argb >> 8);
+                rawRow[i++] = (byte) argb;
+                if (keepAlpha)
+                    rawRow[i++] = (byte) (argb >> 24);
+            }
+            filterRowSub(rawRow, bytesPerPixel, filteredRows, y * rowSize);
+        }
+        Adler32 adler = new Adler32();
+        adler.update(filteredRows, firstRow * rowSize, (lastRow - firstRow) * rowSize);
+        return adler.getValue();
+    }
+
+    private byte[] deflateRows(byte[] filteredRows, int begin, int end, boolean isLastSlice) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            if (begin > 0) {
+                int dictionaryBegin = Math.max(0, begin - DICTIONARY_SIZE);
+                deflater.setDictionary(filteredRows, dictionaryBegin, begin - dictionaryBegin);
+            }
+            deflater.setInput(filteredRows, begin, end - begin);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((end - begin) / 4);
+            byte[] buffer = new byte[64 * 1024];
+            if (isLastSlice) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, length);
+                }
+            } else {
+                // a sync flush ends the slice on a byte boundary without ending the stream
+                int length;
+                do {
+                    length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, length);
+                } while (length == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] getZlibHeader() {
+        int compressionMethod = 0x78; // deflate with a 32K window
+        int levelFlag = compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1 : compressionLevel == 6 ? 2 : 3;
+        int flags = levelFlag << 6;
+        flags += 31 - (compressionMethod * 256 + flags) % 31;
+        return new byte[] { (byte) compressionMethod, (byte) flags };
+    }
+
+    /**
+     * Computes the adler32 checksum of two concatenated sequences from their own checksums, as
+     * zlib's {@code adler32_combine}.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Writes the 'IHDR' chunk of an 8 bits rgb or rgba image.
+     */
+    static void writeHeader(DataOutputStream out, int width, int height, boolean keepAlpha) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8); // bit depth
+        headerData.writeByte(keepAlpha ? 6 : 2); // color type: rgba or rgb
+        headerData.writeByte(0); // compression: deflate
+        headerData.writeByte(0); // filter method
+        headerData.writeByte(0); // no interlacing
+        writeChunk(out, "IHDR", header.toByteArray());
+    }
+
+    /**
+     * Applies the 'sub' filter to a row, {@code filteredRows[offset]} receives the filter type
+     * and the filtered bytes follow it.
+     */
+    static void filterRowSub(byte[] rawRow, int bytesPerPixel, byte[] filteredRows, int offset) {
+        filteredRows[offset] = FILTER_SUB;
+        for (int i = 0; i < rawRow.length; i++)
+            filteredRows[offset+1+i] = (byte) (rawRow[i] - (i < bytesPerPixel ? 0 : rawRow[i-bytesPerPixel]));
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        writeChunk(out, type, data, data.length);
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        if (tasks.size() == 1) {
+            try {
+                return List.of(tasks.get(0).call());
+            } catch (Exception e) {
+                throw new IOException("Could not encode the image", e);
+            }
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> result : DeflateThreads.POOL.invokeAll(tasks))
+                results.add(result.get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while encoding an image");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not encode the image", e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Shared by every encoder, created on first use.
+     */
+    private static class DeflateThreads {
+
+        static final int COUNT = Runtime.getRuntime().availableProcessors();
+        static final ExecutorService POOL;
+
+        static {
+            AtomicInteger threadIndex = new AtomicInteger();
+            POOL = Executors.newFixedThreadPool(COUNT, r -> {
+                Thread thread = new Thread(r, "Png deflater #" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+    }
+
+}
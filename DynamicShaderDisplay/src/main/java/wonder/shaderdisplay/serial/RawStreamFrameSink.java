@@ -0,0 +1,96 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.display.TextureReadbackRing.ReadbackSlot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams uncompressed frames to a channel, typically stdout piped into an external encoder.
+ * <p>
+ * Frames are written straight from the readback buffers: slots are kept by the pipeline until
+ * written so a slow consumer fills the ring and throttles rendering instead of buffering frames.
+ * <ul>
+ * <li>{@link Main.VideoOptions.StreamFormat#Y4M Y4M} expects the I420 frames produced by the
+ * {@link wonder.shaderdisplay.display.FrameConversionPass.OutputFormat#YUV420P YUV420P} conversion</li>
+ * <li>{@link Main.VideoOptions.StreamFormat#BGRA BGRA} expects BGRA frames and writes them as is,
+ * without any header</li>
+ * </ul>
+ */
+public class RawStreamFrameSink implements FrameSink<RawStreamFrameSink.StreamedFrame> {
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer streamHeader;
+    private final ByteBuffer frameHeader;
+
+    public RawStreamFrameSink(WritableByteChannel channel, int width, int height, float framerate, Main.VideoOptions.StreamFormat format) {
+        this.channel = channel;
+        if (format == Main.VideoOptions.StreamFormat.Y4M) {
+            int framerateDenominator = framerate == (int) framerate ? 1 : 1000;
+            int framerateNumerator = Math.round(framerate * framerateDenominator);
+            String header = String.format("YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C420jpeg XCOLORRANGE=LIMITED\n",
+                    width, height, framerateNumerator, framerateDenominator);
+            this.streamHeader = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+            this.frameHeader = ByteBuffer.wrap("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+        } else {
+            this.streamHeader = null;
+            this.frameHeader = null;
+        }
+    }
+
+    @Override
+    public boolean keepsReadbackSlots() {
+        return true;
+    }
+
+    @Override
+    public StreamedFrame createPayload() {
+        return new StreamedFrame();
+    }
+
+    @Override
+    public void convert(ReadbackSlot frame, StreamedFrame payload) {
+        payload.slot = frame;
+    }
+
+    @Override
+    public void write(StreamedFrame payload, int frame) {
+        try {
+            if (streamHeader != null && streamHeader.hasRemaining())
+                writeFully(streamHeader);
+            if (frameHeader != null)
+                writeFully(frameHeader.rewind());
+            writeFully(payload.slot.getPixels());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not stream frame " + frame, e);
+        } finally {
+            payload.slot = null;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        // blocks while the reader is behind, which is what throttles rendering
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close the output stream", e);
+        }
+    }
+
+    public static class StreamedFrame {
+
+        private ReadbackSlot slot;
+
+    }
+
+}
@@ -0,0 +1,334 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.Time;
+import wonder.shaderdisplay.display.StorageBuffer;
+import wonder.shaderdisplay.display.Texture;
+import wonder.shaderdisplay.scene.Scene;
+import wonder.shaderdisplay.scene.SceneRenderTarget;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Saves the state of a scene every few frames during a video export so that a crashed export
+ * can resume from the latest checkpoint instead of frame 0.
+ * <p>
+ * A checkpoint holds every render target at full precision, every storage buffer and the time.
+ * The GL thread downloads them straight into a memory-mapped file, flushing the file to disk and
+ * committing it is done by a background thread. A checkpoint is only committed once every frame
+ * before it has been written to the output, so that the output can be appended to on resume.
+ * <p>
+ * When exporting to a single video file, frames are encoded in segments of one checkpoint
+ * interval stored next to the checkpoints, they are concatenated once the export is done.
+ */
+public class RenderCheckpoints {
+
+    private static final long MAGIC = 0x44534443_4b505431L; // DSDCKPT1
+    private static final long DATA_ALIGNMENT = 4096;
+    private static final String CHECKPOINT_EXTENSION = ".ckpt";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final int KEPT_CHECKPOINTS = 2;
+
+    private static final byte ENTRY_TEXTURE = 0;
+    private static final byte ENTRY_STORAGE_BUFFER = 1;
+
+    private final File directory;
+    private final int interval;
+    private final int exportFirstFrame;
+    private final BlockingQueue<PendingCheckpoint> pendingCheckpoints = new ArrayBlockingQueue<>(1);
+    private final Thread commitThread;
+
+    private final Object writtenFramesLock = new Object();
+    private int lastWrittenFrame = Integer.MIN_VALUE;
+    private int uncommittedCheckpoints;
+
+    /**
+     * @param interval number of frames between two checkpoints, checkpoints are taken at frames
+     *                 {@code exportFirstFrame + k*interval}
+     */
+    public RenderCheckpoints(File directory, int interval, int exportFirstFrame) throws IOException {
+        if (interval <= 0)
+            throw new IllegalArgumentException("The checkpoint interval must be >0");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory '" + directory + "'");
+        this.directory = directory;
+        this.interval = interval;
+        this.exportFirstFrame = exportFirstFrame;
+        this.commitThread = new Thread(this::commitCheckpoints, "Checkpoint writer");
+        this.commitThread.setDaemon(true);
+        this.commitThread.start();
+    }
+
+    public static File getDefaultDirectory(File outputFile) {
+        return new File(outputFile.getParentFile(), outputFile.getName().replace(ImageSequenceFrameSink.FRAME_NUMBER_PATTERN, "") + ".checkpoints");
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public boolean isCheckpointFrame(int frame) {
+        return frame != exportFirstFrame && (frame - exportFirstFrame) % interval == 0;
+    }
+
+    public File getSegmentFile(int segmentFirstFrame) {
+        return new File(directory, String.format("%s%08d.mp4", SEGMENT_PREFIX, segmentFirstFrame));
+    }
+
+    /**
+     * @return the segments written so far, in frame order
+     */
+    public List<File> getSegmentFiles() {
+        File[] segments = Objects.requireNonNull(directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)));
+        Arrays.sort(segments, Comparator.comparing(File::getName));
+        return List.of(segments);
+    }
+
+    public static int getSegmentFirstFrame(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.indexOf('.')));
+    }
+
+    /**
+     * Captures the state of the scene before rendering {@code nextFrame}, must be called from the
+     * GL thread. Blocks if the previous checkpoint is still being committed.
+     */
+    public void save(Scene scene, int nextFrame) throws IOException {
+        List<StateEntry> entries = listEntries(scene);
+        File checkpointFile = getCheckpointFile(nextFrame);
+        File temporaryFile = new File(checkpointFile.getPath() + TEMPORARY_EXTENSION);
+
+        List<MappedByteBuffer> regions = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(temporaryFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            byte[] header = writeHeader(entries, nextFrame);
+            channel.write(ByteBuffer.wrap(header), 0);
+            long offset = alignOffset(header.length);
+            for (StateEntry entry : entries) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, offset, entry.size);
+                if (entry.texture != null)
+                    entry.texture.readFloatPixels(region);
+                else
+                    entry.buffer.read(region, 0, (int) entry.size);
+                regions.add(region);
+                offset = alignOffset(offset + entry.size);
+            }
+        }
+
+        synchronized (this) {
+            uncommittedCheckpoints++;
+        }
+        putUninterruptibly(new PendingCheckpoint(temporaryFile, checkpointFile, regions, nextFrame));
+    }
+
+    /**
+     * Notifies that {@code frame} and every frame before it have been written to the output,
+     * may be called from any thread.
+     */
+    public void onFrameWritten(int frame) {
+        synchronized (writtenFramesLock) {
+            lastWrittenFrame = frame;
+            writtenFramesLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the pending checkpoint to be committed.
+     */
+    public synchronized void awaitPendingCheckpoint() {
+        while (uncommittedCheckpoints > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoints and segments, to be called once the output is complete.
+     */
+    public void deleteDirectory() {
+        awaitPendingCheckpoint();
+        for (File file : Objects.requireNonNull(directory.listFiles()))
+            file.delete();
+        if (!directory.delete())
+            Main.logger.warn("Could not delete the checkpoints directory '" + directory + "'");
+    }
+
+    /**
+     * Restores the latest committed checkpoint into {@code scene}, which must have been created
+     * from the same scene file and with the same resolution. Segments written after that checkpoint
+     * are deleted.
+     *
+     * @return the first frame to render, or -1 if there is no checkpoint to resume from
+     */
+    public int restoreLatest(Scene scene) throws IOException {
+        File[] checkpointFiles = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(CHECKPOINT_EXTENSION)));
+        Arrays.sort(checkpointFiles, Comparator.comparing(File::getName).reversed());
+
+        int nextFrame = -1;
+        if (checkpointFiles.length > 0)
+            nextFrame = restore(checkpointFiles[0], scene);
+
+        for (File segment : getSegmentFiles()) {
+            if (nextFrame < 0 || getSegmentFirstFrame(segment) >= nextFrame)
+                Files.delete(segment.toPath());
+        }
+        return nextFrame;
+    }
+
+    private int restore(File checkpointFile, Scene scene) throws IOException {
+        try (FileChannel channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.READ);
+             DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            if (header.readLong() != MAGIC)
+                throw new IOException("'" + checkpointFile + "' is not a checkpoint file");
+            int headerLength = header.readInt();
+            int nextFrame = header.readInt();
+            if (header.readInt() != exportFirstFrame)
+                throw new IOException("The checkpoint was taken for an export starting at another frame");
+            float time = header.readFloat();
+            if (header.readFloat() != Time.getFramerate())
+                throw new IOException("The checkpoint was taken with another framerate");
+
+            List<StateEntry> entries = listEntries(scene);
+            int entryCount = header.readInt();
+            if (entryCount != entries.size())
+                throw new IOException("The scene does not match the checkpoint, render targets or storage buffers changed");
+            long offset = alignOffset(headerLength);
+            for (StateEntry entry : entries) {
+                byte type = header.readByte();
+                String name = header.readUTF();
+                long size = header.readLong();
+                if (type != entry.type || !name.equals(entry.name) || size != entry.size)
+                    throw new IOException("The scene does not match the checkpoint, '" + entry.name + "' changed");
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                if (entry.texture != null)
+                    entry.texture.uploadFloatPixels(region);
+                else
+                    entry.buffer.setData(0, region);
+                offset = alignOffset(offset + size);
+            }
+
+            Time.setTime(time);
+            Main.logger.info("Restored checkpoint '" + checkpointFile.getName() + "', resuming at frame " + nextFrame);
+            return nextFrame;
+        }
+    }
+
+    private File getCheckpointFile(int nextFrame) {
+        return new File(directory, String.format("checkpoint_%08d%s", nextFrame, CHECKPOINT_EXTENSION));
+    }
+
+    private byte[] writeHeader(List<StateEntry> entries, int nextFrame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeLong(MAGIC);
+        header.writeInt(0); // header length, patched below
+        header.writeInt(nextFrame);
+        header.writeInt(exportFirstFrame);
+        header.writeFloat(Time.getTime());
+        header.writeFloat(Time.getFramerate());
+        header.writeInt(entries.size());
+        for (StateEntry entry : entries) {
+            header.writeByte(entry.type);
+            header.writeUTF(entry.name);
+            header.writeLong(entry.size);
+        }
+        byte[] data = bytes.toByteArray();
+        ByteBuffer.wrap(data).putInt(Long.BYTES, data.length);
+        return data;
+    }
+
+    private static List<StateEntry> listEntries(Scene scene) {
+        List<StateEntry> entries = new ArrayList<>();
+        for (SceneRenderTarget renderTarget : scene.renderTargets) {
+            Texture texture = scene.swapChain.getAttachment(renderTarget.name);
+            entries.add(new StateEntry(ENTRY_TEXTURE, renderTarget.name, texture.getFloatPixelsSize(), texture, null));
+        }
+        scene.storageBuffers.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(e -> entries.add(new StateEntry(ENTRY_STORAGE_BUFFER, e.getKey(), e.getValue().getSizeInBytes(), null, e.getValue())));
+        return entries;
+    }
+
+    private static long alignOffset(long offset) {
+        return (offset + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+    }
+
+    private void commitCheckpoints() {
+        while (true) {
+            PendingCheckpoint checkpoint;
+            try {
+                checkpoint = pendingCheckpoints.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                for (MappedByteBuffer region : checkpoint.regions)
+                    region.force();
+                awaitWrittenFrame(checkpoint.nextFrame - 1);
+                Files.move(checkpoint.temporaryFile.toPath(), checkpoint.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                deleteOldCheckpoints();
+                Main.logger.debug("Committed checkpoint '" + checkpoint.file.getName() + "'");
+            } catch (IOException e) {
+                Main.logger.err(e, "Could not write checkpoint '" + checkpoint.file + "'");
+            } finally {
+                synchronized (this) {
+                    uncommittedCheckpoints--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void awaitWrittenFrame(int frame) {
+        synchronized (writtenFramesLock) {
+            while (lastWrittenFrame < frame) {
+                try {
+                    writtenFramesLock.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private void deleteOldCheckpoints() {
+        File[] checkpointFiles = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(CHECKPOINT_EXTENSION)));
+        Arrays.sort(checkpointFiles, Comparator.comparing(File::getName).reversed());
+        // mapped files may not be deletable yet on some platforms, they will be on the next commit
+        for (int i = KEPT_CHECKPOINTS; i < checkpointFiles.length; i++)
+            checkpointFiles[i].delete();
+    }
+
+    private void putUninterruptibly(PendingCheckpoint checkpoint) {
+        while (true) {
+            try {
+                pendingCheckpoints.put(checkpoint);
+                return;
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private record StateEntry(byte type, String name, long size, Texture texture, StorageBuffer buffer) {
+    }
+
+    private record PendingCheckpoint(File temporaryFile, File file, List<MappedByteBuffer> regions, int nextFrame) {
+    }
+
+}
@@ -0,0 +1,125 @@
+package wonder.shaderdisplay.serial;
+
+import io.methvin.watcher.DirectoryChangeEvent;
+import io.methvin.watcher.DirectoryWatcher;
+import wonder.shaderdisplay.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Watches a directory where other processes drop files, files already present when watching
+ * starts are reported as well.
+ * <p>
+ * A file is only reported once its size has not changed for a short while, so that files still
+ * being copied are not read half written. Hidden files and {@code .tmp}/{@code .part} files are
+ * ignored, writers that can should write to such a file and rename it once complete. A file is
+ * reported again if it is modified after being reported. When the watcher overflows the directory
+ * is scanned again, files that were already reported and did not change since are skipped.
+ */
+public class SpoolDirectory {
+
+    private static final long SETTLE_DURATION_NANOS = 500_000_000L;
+
+    private final Path directory;
+    private final Map<File, PendingFile> pendingFiles = new LinkedHashMap<>();
+    private final Map<File, FileVersion> reportedFiles = new HashMap<>();
+    private DirectoryWatcher watcher;
+
+    public SpoolDirectory(File directory) {
+        this.directory = directory.toPath();
+    }
+
+    public void startWatching() throws IOException {
+        watcher = DirectoryWatcher
+                .builder()
+                .path(directory)
+                .listener(this::onFileUpdate)
+                .build();
+        scanDirectory();
+        Thread thread = new Thread(watcher::watch, "Spool directory watcher");
+        thread.setDaemon(true);
+        thread.start();
+        Main.logger.info("Watching '" + directory + "' for new images");
+    }
+
+    public void stopWatching() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            Main.logger.err("An error occurred while stopping watching files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the files that did not change for long enough, in the order they appeared
+     */
+    public synchronized List<File> pollSettledFiles() {
+        List<File> settledFiles = new ArrayList<>();
+        long now = System.nanoTime();
+        Iterator<Map.Entry<File, PendingFile>> iterator = pendingFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, PendingFile> entry = iterator.next();
+            File file = entry.getKey();
+            if (!file.isFile()) {
+                iterator.remove();
+            } else if (file.length() != entry.getValue().size()) {
+                entry.setValue(new PendingFile(file.length(), now));
+            } else if (now - entry.getValue().lastChange() >= SETTLE_DURATION_NANOS) {
+                settledFiles.add(file);
+                reportedFiles.put(file, FileVersion.of(file));
+                iterator.remove();
+            }
+        }
+        return settledFiles;
+    }
+
+    private synchronized void onFileUpdate(DirectoryChangeEvent ev) {
+        if (ev.eventType() == DirectoryChangeEvent.EventType.OVERFLOW) {
+            Main.logger.warn("Too many changes in '" + directory + "', rescanning it");
+            scanDirectory();
+            return;
+        }
+        if (ev.isDirectory() || !directory.equals(ev.path().getParent()))
+            return;
+        File file = ev.path().toFile();
+        if (ev.eventType() == DirectoryChangeEvent.EventType.DELETE) {
+            pendingFiles.remove(file);
+            reportedFiles.remove(file);
+        } else
+            addPendingFile(file);
+    }
+
+    private synchronized void scanDirectory() {
+        File[] files = directory.toFile().listFiles(File::isFile);
+        if (files == null)
+            return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!FileVersion.of(file).equals(reportedFiles.get(file)))
+                addPendingFile(file);
+        }
+    }
+
+    private void addPendingFile(File file) {
+        String name = file.getName();
+        if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part"))
+            return;
+        pendingFiles.put(file, new PendingFile(file.length(), System.nanoTime()));
+    }
+
+    private record PendingFile(long size, long lastChange) {
+
+    }
+
+    private record FileVersion(long size, long lastModified) {
+
+        static FileVersion of(File file) {
+            return new FileVersion(file.length(), file.lastModified());
+        }
+
+    }
+
+}
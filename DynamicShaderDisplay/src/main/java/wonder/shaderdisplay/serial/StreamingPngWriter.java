@@ -0,0 +1,108 @@
+package wonder.shaderdisplay.serial;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8 bits RGBA png one row at a time, from top to bottom, so that images too large to be
+ * held in memory can be written as they are produced. Rows use the 'sub' filter, the chunk and
+ * filter helpers are shared with {@link PngEncoder}.
+ */
+public class StreamingPngWriter implements Closeable {
+
+    private static final int IDAT_CHUNK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final int width, height;
+    private final ChunkStream idatStream = new ChunkStream("IDAT");
+    private final DeflaterOutputStream deflater;
+    private final byte[] rawRow, filteredRow;
+    private int writtenRows;
+
+    public StreamingPngWriter(File file, int width, int height, int compressionLevel) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.width = width;
+        this.height = height;
+        this.rawRow = new byte[width * 4];
+        this.filteredRow = new byte[width * 4 + 1];
+        this.deflater = new DeflaterOutputStream(idatStream, new Deflater(compressionLevel), IDAT_CHUNK_SIZE);
+
+        out.write(PngEncoder.SIGNATURE);
+        PngEncoder.writeHeader(out, width, height, true);
+    }
+
+    /**
+     * Writes the next row of the image.
+     *
+     * @param argbPixels pixels packed as in {@link java.awt.image.BufferedImage#TYPE_INT_ARGB}
+     * @param offset index of the first pixel of the row in {@code argbPixels}
+     */
+    public void writeRow(int[] argbPixels, int offset) throws IOException {
+        if (writtenRows == height)
+            throw new IllegalStateException("Every row has already been written");
+        for (int x = 0; x < width; x++) {
+            int argb = argbPixels[offset + x];
+            rawRow[x*4  ] = (byte) (argb >> 16);
+            rawRow[x*4+1] = (byte) (argb >> 8);
+            rawRow[x*4+2] = (byte) argb;
+            rawRow[x*4+3] = (byte) (argb >> 24);
+        }
+        PngEncoder.filterRowSub(rawRow, 4, filteredRow, 0);
+        deflater.write(filteredRow);
+        writtenRows++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writtenRows != height)
+                throw new IOException("Only " + writtenRows + " rows out of " + height + " were written");
+            deflater.finish();
+            idatStream.flushChunk();
+            PngEncoder.writeChunk(out, "IEND", new byte[0]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Splits the compressed stream into chunks of bounded size.
+     */
+    private class ChunkStream extends OutputStream {
+
+        private final String type;
+        private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+        private int length;
+
+        ChunkStream(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            while (count > 0) {
+                int copied = Math.min(count, buffer.length - length);
+                System.arraycopy(bytes, offset, buffer, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+                if (length == buffer.length)
+                    flushChunk();
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (length > 0)
+                PngEncoder.writeChunk(out, type, buffer, length);
+            length = 0;
+        }
+
+    }
+
+}
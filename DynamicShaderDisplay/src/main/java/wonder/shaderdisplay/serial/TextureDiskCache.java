@@ -0,0 +1,154 @@
+package wonder.shaderdisplay.serial;
+
+import wonder.shaderdisplay.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Keeps decoded textures on disk so that textures are not decoded again every time the viewer
+ * starts.
+ * <p>
+ * Each texture file has one cache file named after its path, holding the size and modification
+ * date of the texture when it was decoded followed by its pixels in the layout textures are
+ * uploaded with (bgra bytes, rows ordered bottom to top). Cache files are memory mapped so that
+ * their pixels are read straight from the page cache by the upload. A cache file is overwritten
+ * when its texture changes, cache files of textures that were deleted are not removed.
+ */
+public class TextureDiskCache {
+
+    private static final int MAGIC = 0x44534454; // "DSDT"
+    private static final int VERSION = 2;
+
+    private static File directory;
+
+    /**
+     * @param directory where cache files are written, or null to disable the cache
+     */
+    public static void setDirectory(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            Main.logger.warn("Could not create the texture cache directory '" + directory + "'");
+            directory = null;
+        }
+        TextureDiskCache.directory = directory;
+    }
+
+    /**
+     * @return the cached pixels of {@code source}, or null if the texture was not cached or
+     *         changed since it was
+     */
+    public static MappedTexture tryLoad(File source) {
+        File cacheFile = getCacheFile(source);
+        if (cacheFile == null || !cacheFile.isFile())
+            return null;
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] sourcePath = source.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+            if (mapped.remaining() < getHeaderSize(sourcePath) || mapped.getInt() != MAGIC || mapped.getInt() != VERSION)
+                return null;
+            int width = mapped.getInt();
+            int height = mapped.getInt();
+            long lastModified = mapped.getLong();
+            long length = mapped.getLong();
+            byte[] cachedPath = new byte[mapped.getInt()];
+            if (cachedPath.length != sourcePath.length)
+                return null;
+            mapped.get(cachedPath);
+            if (lastModified != source.lastModified() || length != source.length() || !Arrays.equals(cachedPath, sourcePath))
+                return null;
+            if (mapped.remaining() != (long) width * height * 4)
+                return null;
+            ByteBuffer pixels = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+            // bring the pages in now rather than while the texture is being uploaded
+            mapped.load();
+            Main.logger.debug("Loaded texture '" + source + "' from the disk cache");
+            return new MappedTexture(width, height, pixels);
+        } catch (IOException e) {
+            Main.logger.warn("Could not read the cached texture of '" + source + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the decoded pixels of a texture, may be called from any thread.
+     *
+     * @param lastModified the modification date of {@code source} read before it was decoded, so
+     *                     that a texture modified while being decoded is not cached as up to date
+     * @param length       the size of {@code source} read before it was decoded
+     * @param argbPixels   rows ordered bottom to top, as given by {@code Texture.loadTextureData}
+     */
+    public static void store(File source, long lastModified, long length, int width, int height, int[] argbPixels) {
+        File cacheFile = getCacheFile(source);
+        if (cacheFile == null)
+            return;
+        byte[] sourcePath = source.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        File tempFile = new File(cacheFile.getParentFile(), "." + cacheFile.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(getHeaderSize(sourcePath)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+            header.putLong(lastModified).putLong(length);
+            header.putInt(sourcePath.length).put(sourcePath);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header);
+
+            ByteBuffer pixels = ByteBuffer.allocateDirect(Math.min(argbPixels.length, 1 << 20) * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int offset = 0; offset < argbPixels.length; ) {
+                int count = Math.min(argbPixels.length - offset, pixels.capacity() / 4);
+                pixels.clear();
+                pixels.asIntBuffer().put(argbPixels, offset, count);
+                pixels.limit(count * 4);
+                while (pixels.hasRemaining())
+                    channel.write(pixels);
+                offset += count;
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            Main.logger.warn("Could not write the cached texture of '" + source + "': " + e.getMessage());
+            return;
+        }
+        try {
+            ImageWriterPool.moveAtomically(tempFile, cacheFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            Main.logger.warn("Could not write the cached texture of '" + source + "': " + e.getMessage());
+        }
+    }
+
+    private static File getCacheFile(File source) {
+        File cacheDirectory = directory;
+        if (cacheDirectory == null)
+            return null;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(source.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++)
+                name.append(String.format("%02x", hash[i]));
+            return new File(cacheDirectory, name + ".bgra");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static int getHeaderSize(byte[] sourcePath) {
+        return 4 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES + sourcePath.length;
+    }
+
+    /**
+     * @param bgraPixels a direct buffer mapping the cache file, rows ordered bottom to top
+     */
+    public record MappedTexture(int width, int height, ByteBuffer bgraPixels) {
+
+    }
+
+}
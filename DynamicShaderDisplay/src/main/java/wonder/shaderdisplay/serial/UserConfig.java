@@ -35,6 +35,10 @@ public class UserConfig {
             Main.logger.merr(e, "Could not load the config file");
             config = new UserConfig();
         }
+        if (config.screenshotPngCompression < 0 || config.screenshotPngCompression > 9) {
+            Main.logger.warn("Invalid screenshot png compression level " + config.screenshotPngCompression + " in the config file, it must be between 0 and 9, using " + PngEncoder.DEFAULT_COMPRESSION_LEVEL);
+            config.screenshotPngCompression = PngEncoder.DEFAULT_COMPRESSION_LEVEL;
+        }
     }
 
     public static void saveConfig(File projectRootFile) {
@@ -90,5 +94,6 @@ public class UserConfig {
     public List<String> visibleImGuiWindows = List.of("Uniforms");
     public TimeLoopConfig timeLoop = new TimeLoopConfig();
     public AudioConfig audio = new AudioConfig();
+    public int screenshotPngCompression = PngEncoder.DEFAULT_COMPRESSION_LEVEL;
 
 }
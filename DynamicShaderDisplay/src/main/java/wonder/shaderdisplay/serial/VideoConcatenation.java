@@ -0,0 +1,69 @@
+package wonder.shaderdisplay.serial;
+
+import io.humble.video.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Joins videos encoded with the same settings into a single file without re-encoding them.
+ */
+public class VideoConcatenation {
+
+    /**
+     * Remuxes the video stream of each segment into {@code output}, segments are written one after
+     * the other and their timestamps are shifted so that segment {@code i} starts at frame
+     * {@code segmentFirstFrames[i]}.
+     */
+    public static void concatenate(List<File> segments, int[] segmentFirstFrames, float framerate, File output) throws IOException, InterruptedException {
+        if (segments.isEmpty())
+            throw new IllegalArgumentException("No segment to concatenate");
+
+        Rational frameTimeBase = Rational.make(1 / framerate);
+        Muxer muxer = Muxer.make(output.getAbsolutePath(), null, "mp4");
+        MediaPacket packet = MediaPacket.make();
+        boolean muxerOpened = false;
+
+        for (int i = 0; i < segments.size(); i++) {
+            Demuxer demuxer = Demuxer.make();
+            demuxer.open(segments.get(i).getAbsolutePath(), null, false, true, null, null);
+            int videoStreamId = findVideoStream(demuxer);
+            if (videoStreamId < 0)
+                throw new IOException("Segment '" + segments.get(i) + "' has no video stream");
+
+            if (!muxerOpened) {
+                Decoder decoder = demuxer.getStream(videoStreamId).getDecoder();
+                decoder.open(null, null);
+                muxer.addNewStream(decoder);
+                muxer.open(null, null);
+                muxerOpened = true;
+            }
+
+            while (demuxer.read(packet) >= 0) {
+                if (!packet.isComplete() || packet.getStreamIndex() != videoStreamId)
+                    continue;
+                long offset = packet.getTimeBase().rescale(segmentFirstFrames[i], frameTimeBase);
+                if (packet.getPts() != Global.NO_PTS)
+                    packet.setPts(packet.getPts() + offset);
+                if (packet.getDts() != Global.NO_PTS)
+                    packet.setDts(packet.getDts() + offset);
+                packet.setStreamIndex(0);
+                muxer.write(packet, false);
+            }
+            demuxer.close();
+        }
+
+        muxer.close();
+    }
+
+    private static int findVideoStream(Demuxer demuxer) throws IOException, InterruptedException {
+        for (int i = 0; i < demuxer.getNumStreams(); i++) {
+            Decoder decoder = demuxer.getStream(i).getDecoder();
+            if (decoder != null && decoder.getCodecType() == MediaDescriptor.Type.MEDIA_VIDEO)
+                return i;
+        }
+        return -1;
+    }
+
+}
@@ -2,6 +2,7 @@ package wonder.shaderdisplay.serial;
 
 import fr.wonder.commons.loggers.Logger;
 import fr.wonder.commons.loggers.SimpleLogger;
+import io.humble.ferry.Buffer;
 import io.humble.video.*;
 import io.humble.video.awt.MediaPictureConverter;
 import io.humble.video.awt.MediaPictureConverterFactory;
@@ -9,15 +10,31 @@ import wonder.shaderdisplay.MathUtils;
 import wonder.shaderdisplay.Time;
 import wonder.shaderdisplay.display.PixelBuffer;
 import wonder.shaderdisplay.display.Texture;
+import wonder.shaderdisplay.display.YuvConversionPass;
 import wonder.shaderdisplay.entry.BadInitException;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes a video on its own thread, ahead of the frames being displayed.
+ * <p>
+ * Decoded frames are handed to the render thread through a ring of preallocated frames with a
+ * single producer (the streaming thread) and a single consumer (the render thread): each side
+ * only advances its own counter, so no lock is taken and steady playback allocates nothing. A
+ * side that has to wait for the other parks until it is unparked or a short delay elapses. When
+ * time jumps the render thread bumps the seek generation and publishes it along with the frame to
+ * seek to. The streaming thread tags frames with the generation of the last seek it took, frames
+ * decoded for an older generation are dropped by both sides.
+ * <p>
+ * Planar YUV 4:2:0 videos, which most videos are, keep their decoded planes as they are: the
+ * streaming thread only copies them and the render thread converts them to rgb with a
+ * {@link YuvConversionPass}. Other pixel formats are converted to rgb by the streaming thread.
+ */
 class VideoStream implements InputImageStream {
 
     static final int LEVEL_VDEBUG = Logger.LEVEL_DEBUG - 100;
@@ -29,17 +46,44 @@ class VideoStream implements InputImageStream {
 
     Texture currentFrame;
     PixelBuffer pbo;
+    int pboSize;
+    /** Null if frames are converted to rgb by the streaming thread */
+    YuvConversionPass yuvConversion;
+    /** Whether decoded frames are planar YUV 4:2:0 and are converted by {@link #yuvConversion} */
+    boolean planarYuv;
+    boolean fullRangeYuv;
+    final int[] pboLineSizes = new int[3];
 
     static class LoadedFrame {
         int frameNum;
+        int seekGeneration;
+        /** Rgb pixels, null for planar YUV frames */
         int[] data;
+        /** The Y, U and V planes one after the other, grown when a frame does not fit */
+        ByteBuffer planes;
+        final int[] lineSizes = new int[3];
     }
 
     static final int CONCURRENT_LOADED_FRAMES = 10;
-    List<LoadedFrame> loadedFrames = new ArrayList<>();
+    /** How long a side waits for the other before checking the ring again, in case an unpark was missed */
+    static final long PARK_NANOS = 1_000_000;
+    LoadedFrame[] frameRing;
+    /** Written by the streaming thread only, the frame at producedFrames % ring size is the next one filled */
+    volatile long producedFrames;
+    /** Written by the render thread only, the frame at consumedFrames % ring size is the next one displayed */
+    volatile long consumedFrames;
+    /** Written by the render thread only, incremented when time jumps */
+    volatile int seekGeneration;
+    /** Read by the streaming thread only, the generation of the last seek it took */
+    int streamingGeneration;
+    static final long NO_PENDING_SEEK = -1;
+    /** The frame to seek to and its generation, packed so that both are published at once */
+    final AtomicLong pendingSeek = new AtomicLong(NO_PENDING_SEEK);
+    Thread streamingThread, renderThread;
+    /** Set by {@link #close()}, the streaming thread stops as soon as it sees it */
+    volatile boolean closed;
     int pboStoredFrame = -1;
     int textureStoredFrame = -1;
-    int nextFrameSeekInVideoStream = -1;
 
     Demuxer demuxer;
     MediaPicture workingPicture;
@@ -94,7 +138,11 @@ class VideoStream implements InputImageStream {
         this.videoWidth = videoDecoder.getWidth();
         this.videoHeight = videoDecoder.getHeight();
         this.workingPicture = MediaPicture.make(videoWidth, videoHeight, videoDecoder.getPixelFormat());
-        this.pictureConverter = MediaPictureConverterFactory.createConverter(MediaPictureConverterFactory.HUMBLE_BGR_24, workingPicture);
+        PixelFormat.Type pixelFormat = videoDecoder.getPixelFormat();
+        this.planarYuv = pixelFormat == PixelFormat.Type.PIX_FMT_YUV420P || pixelFormat == PixelFormat.Type.PIX_FMT_YUVJ420P;
+        this.fullRangeYuv = pixelFormat == PixelFormat.Type.PIX_FMT_YUVJ420P;
+        if (!planarYuv)
+            this.pictureConverter = MediaPictureConverterFactory.createConverter(MediaPictureConverterFactory.HUMBLE_BGR_24, workingPicture);
     }
 
     @Override
@@ -104,23 +152,31 @@ class VideoStream implements InputImageStream {
 
     @Override
     public void startReading() {
-        this.pbo = new PixelBuffer(videoWidth * videoHeight * 4);
+        this.pboSize = videoWidth * videoHeight * (planarYuv ? 2 : 4);
+        this.pbo = new PixelBuffer(pboSize);
         this.currentFrame = new Texture(videoWidth, videoHeight, Texture.InternalTextureFormat.RGBA8);
-        new Thread(this::videoStreamingLoop, "VideoStreaming").start();
+        if (planarYuv)
+            this.yuvConversion = new YuvConversionPass(videoWidth, videoHeight, fullRangeYuv);
+        this.frameRing = new LoadedFrame[CONCURRENT_LOADED_FRAMES];
+        for (int i = 0; i < frameRing.length; i++) {
+            frameRing[i] = new LoadedFrame();
+            if (!planarYuv)
+                frameRing[i].data = new int[videoWidth * videoHeight];
+        }
+        this.renderThread = Thread.currentThread();
+        this.streamingThread = new Thread(this::videoStreamingLoop, "VideoStreaming");
+        streamingThread.setDaemon(true);
+        streamingThread.start();
     }
 
     private void videoStreamingLoop() {
         try {
-            while (true) {
-                int seekFrame = -1;
-                synchronized (this) {
-                    if (nextFrameSeekInVideoStream >= 0) {
-                        seekFrame = nextFrameSeekInVideoStream;
-                        nextFrameSeekInVideoStream = -1;
-                    }
-                }
+            while (!closed) {
+                long seek = pendingSeek.getAndSet(NO_PENDING_SEEK);
 
-                if (seekFrame >= 0) {
+                if (seek != NO_PENDING_SEEK) {
+                    int seekFrame = (int) seek;
+                    streamingGeneration = (int) (seek >>> 32);
                     logger.debug("Jumping in video stream to frame " + seekFrame);
                     packetRunningOffset = packetRunningBytesRead = 0;
                     continueReadingPacket = false;
@@ -213,36 +269,74 @@ class VideoStream implements InputImageStream {
         }
     }
 
+    /**
+     * Called from the streaming thread only.
+     *
+     * @return true if the picture was complete, whether it was kept or dropped
+     */
     private boolean loadFrame(MediaPicture picture) {
         if (!picture.isComplete())
             return false;
-
-        workingImage = pictureConverter.toImage(workingImage, workingPicture);
-        LoadedFrame frame = new LoadedFrame();
-        frame.data = Texture.loadTextureData(workingImage, false);
-        frame.frameNum = (int) Math.round(picture.getPts() * presentationTimeToFrames);
-
-        synchronized (this) {
-            if (loadedFrames.size() >= CONCURRENT_LOADED_FRAMES) {
-                try {
-                    this.wait();
-                } catch (InterruptedException x) {
-                }
-            }
-
-            if (nextFrameSeekInVideoStream >= 0) {
+        if (closed)
+            return true;
+
+        // the render thread bumps its generation before publishing a seek, a frame decoded before
+        // a seek was taken either sees the pending seek or a generation newer than its own
+        int generation = streamingGeneration;
+        if (pendingSeek.get() != NO_PENDING_SEEK || generation != seekGeneration) {
+            logger.debug("Frame that was being loaded has been dropped after a time update");
+            return true;
+        }
+        while (producedFrames - consumedFrames >= frameRing.length) {
+            if (closed)
+                return true;
+            if (generation != seekGeneration) {
                 logger.debug("Frame that was being loaded has been dropped after a time update");
                 return true;
             }
-
-            loadedFrames.add(frame);
-            if (loadedFrames.size() == 1)
-                this.notify();
+            LockSupport.parkNanos(this, PARK_NANOS);
         }
 
+        LoadedFrame frame = frameRing[(int) (producedFrames % frameRing.length)];
+        if (planarYuv) {
+            copyPlanes(picture, frame);
+        } else {
+            workingImage = pictureConverter.toImage(workingImage, workingPicture);
+            Texture.loadTextureData(workingImage, frame.data, false);
+        }
+        frame.frameNum = (int) Math.round(picture.getPts() * presentationTimeToFrames);
+        frame.seekGeneration = generation;
+        // publishes the frame, this thread is the only one writing the counter
+        producedFrames = producedFrames + 1;
+        LockSupport.unpark(renderThread);
         return true;
     }
 
+    /**
+     * Copies the Y, U and V planes of a picture as they were decoded, padding at the end of rows
+     * included, into the frame's buffer.
+     */
+    private void copyPlanes(MediaPicture picture, LoadedFrame frame) {
+        int size = 0;
+        for (int p = 0; p < 3; p++) {
+            frame.lineSizes[p] = picture.getLineSize(p);
+            size += frame.lineSizes[p] * getPlaneHeight(p);
+        }
+        if (frame.planes == null || frame.planes.capacity() < size)
+            frame.planes = ByteBuffer.allocateDirect(size);
+        frame.planes.clear();
+        for (int p = 0; p < 3; p++) {
+            Buffer data = picture.getData(p);
+            frame.planes.put(data.getByteBuffer(0, frame.lineSizes[p] * getPlaneHeight(p)));
+            data.delete();
+        }
+        frame.planes.flip();
+    }
+
+    private int getPlaneHeight(int plane) {
+        return plane == 0 ? videoHeight : (videoHeight + 1) / 2;
+    }
+
     private int getRealFrameAsVideoFrame() {
         int frame = (int) (Time.getTime() * videoFramerate);
         return MathUtils.pmod(frame, videoFrameDuration);
@@ -250,21 +344,38 @@ class VideoStream implements InputImageStream {
 
     @Override
     public void close() {
+        // the streaming thread may be using the demuxer, it is stopped first
+        closed = true;
+        if (streamingThread != null) {
+            LockSupport.unpark(streamingThread);
+            try {
+                streamingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try {
             demuxer.close();
         } catch (InterruptedException | IOException e) {
             logger.err("Failed to close the video stream?");
         }
+        // gl resources only exist once reading started
+        if (yuvConversion != null)
+            yuvConversion.dispose();
+        if (pbo != null)
+            pbo.dispose();
+        if (currentFrame != null)
+            currentFrame.dispose();
     }
 
     @Override
     public Texture getTexture() {
         if (Time.justChanged()) {
-            synchronized (this) {
-                nextFrameSeekInVideoStream = getRealFrameAsVideoFrame();
-                loadedFrames.clear();
-                this.notify();
-            }
+            // frames already decoded are dropped as they are read
+            int generation = seekGeneration + 1;
+            seekGeneration = generation;
+            pendingSeek.set((long) generation << 32 | getRealFrameAsVideoFrame());
+            LockSupport.unpark(streamingThread);
         }
 
         int currentFrameNum = getRealFrameAsVideoFrame();
@@ -274,7 +385,10 @@ class VideoStream implements InputImageStream {
                 if (pboStoredFrame != currentFrameNum)
                     logger.warn("Unexpected frame displayed " + pboStoredFrame + " vs " + currentFrameNum);
             }
-            pbo.copyToTexture(currentFrame);
+            if (yuvConversion != null)
+                yuvConversion.convert(pbo, pboLineSizes, currentFrame);
+            else
+                pbo.copyToTexture(currentFrame);
             textureStoredFrame = pboStoredFrame;
             loadNextFrameIntoPBO();
         }
@@ -284,27 +398,52 @@ class VideoStream implements InputImageStream {
     int readNum = 0;
 
     private void loadNextFrameIntoPBO() {
+        LoadedFrame frame = takeFrame();
+        logger.log("Reading frame " + frame.frameNum + " (" + (readNum++) + ")", LEVEL_VDEBUG);
+        if (planarYuv && frame.planes.remaining() > pboSize) {
+            pbo.dispose();
+            pboSize = frame.planes.remaining();
+            pbo = new PixelBuffer(pboSize);
+        }
         ByteBuffer buf = pbo.map();
-        synchronized (this) {
-            if (loadedFrames.isEmpty()) {
-                logger.debug("Frame throttling, empty buffer");
-                try {
-                    this.wait();
-                } catch (InterruptedException x) {
-                }
-            }
-            if (!loadedFrames.isEmpty()) {
-                LoadedFrame frame = loadedFrames.remove(0);
-                logger.log("Reading frame " + frame.frameNum + " (" + (readNum++) + ")", LEVEL_VDEBUG);
-                buf.asIntBuffer().put(frame.data);
-                pboStoredFrame = frame.frameNum;
-            }
-            if (loadedFrames.size() < CONCURRENT_LOADED_FRAMES)
-                this.notify();
+        if (planarYuv) {
+            buf.put(frame.planes.duplicate());
+            System.arraycopy(frame.lineSizes, 0, pboLineSizes, 0, pboLineSizes.length);
+        } else {
+            buf.asIntBuffer().put(frame.data);
         }
+        pboStoredFrame = frame.frameNum;
+        // the frame is copied, its slot can be filled again
+        consumedFrames = consumedFrames + 1;
+        LockSupport.unpark(streamingThread);
         pbo.unmap();
     }
 
+    /**
+     * Waits for the next frame decoded since the last seek, called from the render thread only.
+     * The frame stays in the ring until {@link #consumedFrames} is advanced.
+     */
+    private LoadedFrame takeFrame() {
+        boolean throttled = false;
+        while (true) {
+            long consumed = consumedFrames;
+            if (consumed == producedFrames) {
+                if (closed)
+                    throw new IllegalStateException("The video stream is closed");
+                if (!throttled)
+                    logger.debug("Frame throttling, empty buffer");
+                throttled = true;
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+            LoadedFrame frame = frameRing[(int) (consumed % frameRing.length)];
+            if (frame.seekGeneration == seekGeneration)
+                return frame;
+            consumedFrames = consumed + 1;
+            LockSupport.unpark(streamingThread);
+        }
+    }
+
     public float getFramerate() {
         return videoFramerate;
     }
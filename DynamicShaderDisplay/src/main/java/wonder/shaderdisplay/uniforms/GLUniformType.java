@@ -3,6 +3,7 @@ package wonder.shaderdisplay.uniforms;
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_INT;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_SAMPLER_2D_ARRAY;
 
 import java.util.Map;
 
@@ -26,7 +27,8 @@ public enum GLUniformType {
 	IVEC3(GL_INT_VEC3,   "ivec3", 3),
 	IVEC4(GL_INT_VEC4,   "ivec4", 4),
 	BOOL (GL_BOOL,       "bool",  1),
-	SAMPLER2D(GL_SAMPLER_2D, "sampler2D", -1);
+	SAMPLER2D(GL_SAMPLER_2D, "sampler2D", -1),
+	SAMPLER2D_ARRAY(GL_SAMPLER_2D_ARRAY, "sampler2DArray", -1);
 	
 	public final int glType;
 	public final String name;
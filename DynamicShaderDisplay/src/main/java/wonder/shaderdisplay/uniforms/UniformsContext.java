@@ -2,15 +2,21 @@ package wonder.shaderdisplay.uniforms;
 
 import imgui.ImGui;
 import wonder.shaderdisplay.Main;
+import wonder.shaderdisplay.display.ShaderCompiler;
 import wonder.shaderdisplay.display.Texture;
+import wonder.shaderdisplay.display.TextureHandle;
+import wonder.shaderdisplay.display.TextureLoader;
+import wonder.shaderdisplay.display.TextureOptions;
 import wonder.shaderdisplay.scene.RenderableLayer;
 import wonder.shaderdisplay.scene.Scene;
 import wonder.shaderdisplay.scene.SceneRenderTarget;
+import wonder.shaderdisplay.scene.UniformDefaultValue;
 import wonder.shaderdisplay.uniforms.GLUniformType.FloatUniformControl;
 import wonder.shaderdisplay.uniforms.GLUniformType.IntUniformControl;
 import wonder.shaderdisplay.uniforms.arbitrary.*;
 import wonder.shaderdisplay.uniforms.predefined.*;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.*;
@@ -33,6 +39,8 @@ public class UniformsContext {
 			new RawBuiltinUniform(GLUniformType.IVEC2, "u_resolution", (n,p) -> new ResolutionUniform(n,p,false)),
 			new RawBuiltinUniform(GLUniformType.VEC2,  "iResolution",  (n,p) -> new ResolutionUniform(n,p,true)),
 			new RawBuiltinUniform(GLUniformType.VEC2,  "u_resolution", (n,p) -> new ResolutionUniform(n,p,true)),
+			new RawBuiltinUniform(GLUniformType.VEC2,  ShaderCompiler.TILE_OFFSET_UNIFORM, TileOffsetUniform::new),
+			new RawBuiltinUniform(GLUniformType.INT,   ShaderCompiler.BATCH_LAYER_UNIFORM, BatchLayerUniform::new),
 			new RawBuiltinUniform(GLUniformType.MAT4,  "u_view",       ViewUniforms.ViewMatrixUniform::new),
 			new RawBuiltinUniform(GLUniformType.VEC3,  "u_viewPosition", ViewUniforms.ViewPositionUniform::new),
 			new RawBuiltinUniform(GLUniformType.VEC3,  "u_viewDirection", ViewUniforms.ViewDirectionUniform::new),
@@ -58,6 +66,9 @@ public class UniformsContext {
 	}
 
 	public void rescan(int program, String code) {
+		// previous textures are released after the new uniforms acquired theirs, so that
+		// unchanged textures are reused instead of being loaded again
+		List<Uniform> previousUniforms = uniforms;
 		uniforms = new ArrayList<>();
 		originalUniformValues.clear();
 		
@@ -72,7 +83,7 @@ public class UniformsContext {
 			}
 			
 			// handle textures
-			if(u.type == GLUniformType.SAMPLER2D) {
+			if(u.type == GLUniformType.SAMPLER2D || u.type == GLUniformType.SAMPLER2D_ARRAY) {
 				uniforms.add(getTextureUniform(program, code, u));
 				oldArbitraryUniforms.remove(u.name);
 				continue;
@@ -130,6 +141,19 @@ public class UniformsContext {
 			Iterable<String> boundNames = () -> uniforms.stream().map(u -> u.name).iterator();
 			Main.logger.debug("Bound uniforms: " + String.join(" ", boundNames));
 		}
+		disposeUniforms(previousUniforms);
+	}
+	
+	public void dispose() {
+		disposeUniforms(uniforms);
+		uniforms = new ArrayList<>();
+	}
+	
+	private static void disposeUniforms(List<Uniform> uniforms) {
+		for(Uniform u : uniforms) {
+			if(u instanceof TextureUniform textureUniform)
+				textureUniform.dispose();
+		}
 	}
 	
 	private void tryRestorePreviousUniformValues(String name, ArbitraryUniform currentUniform) {
@@ -146,8 +170,11 @@ public class UniformsContext {
 		return null;
 	}
 	
+	/** Matches "path/to/image.png [srgb mipmaps]" */
+	private static final Pattern TEXTURE_OPTIONS_PATTERN = Pattern.compile("(.*?)\\s*\\[([^\\]]*)\\]");
+	
 	private static Uniform getTextureUniform(int program, String code, RawUniform u) {
-		Pattern texturePattern = Pattern.compile("\nuniform sampler2D " + Pattern.quote(u.name) + ";\\s+//(.+)");
+		Pattern texturePattern = Pattern.compile("\nuniform sampler2D(?:Array)? " + Pattern.quote(u.name) + ";\\s+//(.+)");
 		Matcher matcher = texturePattern.matcher(code);
 
 		if (!matcher.find())
@@ -158,13 +185,19 @@ public class UniformsContext {
 		if(path.matches("builtin \\d+")) { // default texture, loaded from resources
 			int buitinId = Integer.parseInt(path.substring("builtin ".length()));
 			Texture texture = Texture.loadTextureFromResources(buitinId);
-			return new TextureUniform(program, u.name, texture, path);
+			return new TextureUniform(program, u.name, new TextureHandle(texture), path);
 		} else if (path.matches("input \\d+")) {
 			return new TextureUniform(program, u.name, Integer.parseInt(path.substring("input ".length())));
 		} else if (path.matches("target 0")) {
 			return new TextureUniform(program, u.name, SceneRenderTarget.DEFAULT_RT_COPY.name);
 		} else if (!path.isEmpty()) { // normal texture, loaded from user files
-			Texture texture = Texture.loadTexture(Paths.get(path).toFile());
+			TextureOptions options = TextureOptions.DEFAULT;
+			Matcher optionsMatcher = TEXTURE_OPTIONS_PATTERN.matcher(path);
+			if(optionsMatcher.matches()) {
+				path = optionsMatcher.group(1);
+				options = TextureOptions.parse(optionsMatcher.group(2));
+			}
+			TextureHandle texture = TextureLoader.load(Paths.get(path).toFile(), options);
 			return new TextureUniform(program, u.name, texture, path);
 		} else { // no texture specified, might use render targets if specified in the scene file
 			return new TextureUniform(program, u.name);
@@ -245,6 +278,49 @@ public class UniformsContext {
 		}
 	}
 	
+	/**
+	 * Applies the built-in uniforms that change between the layers of a batched draw, see
+	 * {@link ShaderCompiler#setBatchedRendering(boolean)}.
+	 */
+	public void applyBatchLayerUniforms(Scene scene) {
+		UniformApplicationContext context = new UniformApplicationContext(scene, layer);
+		for(Uniform u : uniforms) {
+			if (u instanceof BatchLayerUniform || u instanceof TileOffsetUniform)
+				u.apply(context);
+		}
+	}
+	
+	/**
+	 * @return the existing files textures are loaded from, watched to be reloaded when they change
+	 */
+	public Set<File> getTextureFiles() {
+		Set<File> files = new HashSet<>();
+		for(Uniform u : uniforms) {
+			if(u instanceof TextureUniform texture && texture.getSourceFile() != null && texture.getSourceFile().isFile())
+				files.add(texture.getSourceFile());
+		}
+		return files;
+	}
+	
+	/**
+	 * @return the names of the render targets sampled by the layer, either bound
+	 *         by the scene file or from the shader source
+	 */
+	public Set<String> getSampledRenderTargets() {
+		Set<String> renderTargets = new HashSet<>();
+		for(Uniform u : uniforms) {
+			if(!(u instanceof TextureUniform texture))
+				continue;
+			if(texture.getFixedRenderTargetName() != null)
+				renderTargets.add(texture.getFixedRenderTargetName());
+			for(UniformDefaultValue defaultValue : layer.getDefaultUniformValues()) {
+				if(defaultValue.name.equals(u.name))
+					renderTargets.add(defaultValue.value);
+			}
+		}
+		return renderTargets;
+	}
+	
 	public void renderControls(Scene scene) {
 		if (uniforms.stream().anyMatch(Uniform::isUserEditable)) {
 			ImGui.sameLine();
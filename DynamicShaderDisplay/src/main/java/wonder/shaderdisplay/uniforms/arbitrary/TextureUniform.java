@@ -5,11 +5,15 @@ import imgui.flag.ImGuiHoveredFlags;
 import imgui.type.ImString;
 import wonder.shaderdisplay.serial.InputFiles;
 import wonder.shaderdisplay.display.Texture;
+import wonder.shaderdisplay.display.TextureCache;
+import wonder.shaderdisplay.display.TextureHandle;
 import wonder.shaderdisplay.scene.UniformDefaultValue;
 import wonder.shaderdisplay.uniforms.NonEditableUniform;
 import wonder.shaderdisplay.uniforms.UniformApplicationContext;
 import wonder.shaderdisplay.uniforms.ValueLocationCache;
 
+import java.io.File;
+
 import static org.lwjgl.opengl.GL20.glUniform1i;
 
 public class TextureUniform extends NonEditableUniform {
@@ -17,16 +21,13 @@ public class TextureUniform extends NonEditableUniform {
 	private final int location;
 
 	private final int inputTextureSlot;
-	private final Texture fixedInputTexture;
+	private final TextureHandle fixedInputTexture;
 	private final String fixedTextureName;
 	private final String fixedRenderTargetName;
 
 	private String currentlyBoundTextureName;
 	
-	// there is a memory leak here, when texture caching is disabled texture uniforms are not
-	// properly deleted and their textures are not freed.
-	
-	public TextureUniform(int program, String name, Texture texture, String textureName) {
+	public TextureUniform(int program, String name, TextureHandle texture, String textureName) {
 		super(name);
 		this.location = new ValueLocationCache(program, name).getLocation(0);
 		this.fixedInputTexture = texture;
@@ -76,9 +77,10 @@ public class TextureUniform extends NonEditableUniform {
 			boundTexture = InputFiles.singleton.getInputTexture(inputTextureSlot);
 			currentlyBoundTextureName = "input" + inputTextureSlot;
 		}
-		if (boundTexture == null) {
-			boundTexture = fixedInputTexture;
-			currentlyBoundTextureName = fixedTextureName;
+		if (boundTexture == null && fixedInputTexture != null) {
+			// the missing texture is bound while the texture is loading
+			boundTexture = fixedInputTexture.get();
+			currentlyBoundTextureName = fixedInputTexture.isLoading() ? fixedTextureName + " (loading)" : fixedTextureName;
 		}
 		if (boundTexture == null) {
 			boundTexture = Texture.getMissingTexture();
@@ -87,6 +89,28 @@ public class TextureUniform extends NonEditableUniform {
 		boundTexture.bind(bindingSlotIndex);
 	}
 	
+	/**
+	 * Gives back the texture loaded for this uniform, called when the uniform is replaced.
+	 */
+	public void dispose() {
+		if (fixedInputTexture != null)
+			TextureCache.release(fixedInputTexture);
+	}
+	
+	/**
+	 * @return the file the texture is loaded from, or null if the uniform is not bound to a file
+	 */
+	public File getSourceFile() {
+		return fixedInputTexture == null ? null : fixedInputTexture.getSourceFile();
+	}
+	
+	/**
+	 * @return the render target bound through the shader source ({@code // target 0}), or null
+	 */
+	public String getFixedRenderTargetName() {
+		return fixedRenderTargetName;
+	}
+	
 	@Override
 	public void renderControl() {
 		ImGui.beginDisabled();
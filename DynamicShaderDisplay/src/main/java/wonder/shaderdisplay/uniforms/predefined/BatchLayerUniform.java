@@ -0,0 +1,40 @@
+package wonder.shaderdisplay.uniforms.predefined;
+
+import wonder.shaderdisplay.uniforms.NonEditableUniform;
+import wonder.shaderdisplay.uniforms.UniformApplicationContext;
+import wonder.shaderdisplay.uniforms.ValueLocationCache;
+
+import static org.lwjgl.opengl.GL20.glUniform1i;
+
+/**
+ * Index of the image being rendered in a batch, which is also the layer of the input
+ * {@code sampler2DArray} holding it. Always 0 outside of batched rendering.
+ */
+public class BatchLayerUniform extends NonEditableUniform {
+	
+	private static int currentLayer;
+	
+	private final int location;
+	private int layer = -1;
+	
+	public BatchLayerUniform(String name, int program) {
+		super(name);
+		this.location = ValueLocationCache.getLocation(program, name);
+	}
+	
+	@Override
+	public void apply(UniformApplicationContext context) {
+		if(layer != currentLayer) {
+			glUniform1i(location, currentLayer);
+			layer = currentLayer;
+		}
+	}
+	
+	@Override
+	public void renderControl() {}
+	
+	public static void setLayer(int layer) {
+		currentLayer = layer;
+	}
+
+}
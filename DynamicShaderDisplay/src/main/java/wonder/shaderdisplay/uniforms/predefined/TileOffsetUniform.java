@@ -0,0 +1,43 @@
+package wonder.shaderdisplay.uniforms.predefined;
+
+import wonder.shaderdisplay.uniforms.NonEditableUniform;
+import wonder.shaderdisplay.uniforms.UniformApplicationContext;
+import wonder.shaderdisplay.uniforms.ValueLocationCache;
+
+import static org.lwjgl.opengl.GL20.glUniform2f;
+
+/**
+ * Position in pixels of the tile being rendered in the full image, used by tiled screenshots.
+ * Fragment shaders compiled for tiled rendering add it to {@code gl_FragCoord}. Batched
+ * rendering uses the opposite of the position of the image in the render targets.
+ */
+public class TileOffsetUniform extends NonEditableUniform {
+	
+	private static int offsetX, offsetY;
+	
+	private final int location;
+	private int x = -1, y = -1;
+	
+	public TileOffsetUniform(String name, int program) {
+		super(name);
+		this.location = ValueLocationCache.getLocation(program, name);
+	}
+	
+	@Override
+	public void apply(UniformApplicationContext context) {
+		if(x != offsetX || y != offsetY) {
+			glUniform2f(location, offsetX, offsetY);
+			x = offsetX;
+			y = offsetY;
+		}
+	}
+	
+	@Override
+	public void renderControl() {}
+	
+	public static void setTileOffset(int x, int y) {
+		offsetX = x;
+		offsetY = y;
+	}
+
+}
@@ -0,0 +1,54 @@
+#version 330 core
+
+// Prepares rendered frames for export, the image is flipped so that the first
+// row read back is the top of the frame.
+// By default the frame is packed into a single channel target of size (w, h*3/2)
+// laid out like an I420 buffer: the Y plane fills rows [0,h), then the U and V
+// planes follow each other, each chroma row taking half a texture row.
+// Coefficients are BT.601 limited range.
+// With RGB_OUTPUT the target has the frame's size and receives the frame's colors,
+// alpha is kept only if u_keepAlpha is set.
+
+uniform sampler2D u_texture;
+uniform ivec2 u_size;
+uniform bool u_premultiply;
+uniform bool u_keepAlpha;
+
+#ifdef RGB_OUTPUT
+layout(location=0) out vec4 value;
+#else
+layout(location=0) out float value;
+#endif
+
+vec3 fetchRGB(int x, int y) {
+  vec4 c = clamp(texelFetch(u_texture, ivec2(x, u_size.y - 1 - y), 0), 0., 1.);
+  return u_premultiply ? c.rgb * c.a : c.rgb;
+}
+
+void main(void) {
+  ivec2 p = ivec2(gl_FragCoord.xy);
+
+#ifdef RGB_OUTPUT
+  float alpha = u_keepAlpha ? clamp(texelFetch(u_texture, ivec2(p.x, u_size.y - 1 - p.y), 0).a, 0., 1.) : 1.;
+  value = vec4(fetchRGB(p.x, p.y), alpha);
+#else
+  if (p.y < u_size.y) {
+    vec3 c = fetchRGB(p.x, p.y);
+    value = (16. + dot(c, vec3(65.481, 128.553, 24.966))) / 255.;
+    return;
+  }
+
+  int halfWidth = u_size.x / 2;
+  int planeSize = halfWidth * (u_size.y / 2);
+  int index = (p.y - u_size.y) * u_size.x + p.x;
+  bool isV = index >= planeSize;
+  if (isV)
+    index -= planeSize;
+  ivec2 s = ivec2(index % halfWidth, index / halfWidth) * 2;
+  vec3 c = (fetchRGB(s.x, s.y) + fetchRGB(s.x+1, s.y) + fetchRGB(s.x, s.y+1) + fetchRGB(s.x+1, s.y+1)) * .25;
+  if (isV)
+    value = (128. + dot(c, vec3(112., -93.786, -18.214))) / 255.;
+  else
+    value = (128. + dot(c, vec3(-37.797, -74.203, 112.))) / 255.;
+#endif
+}
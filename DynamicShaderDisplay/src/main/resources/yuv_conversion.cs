@@ -0,0 +1,39 @@
+#version 430 core
+
+// Converts a decoded video frame from its Y, U and V planes to rgb.
+// Planes are uploaded as decoded, top row first, the output is flipped so that
+// its first row is the bottom of the frame like other textures.
+// Chroma planes have half the resolution of the Y plane in both directions.
+// Coefficients are BT.601, limited range unless u_fullRange is set.
+
+layout(local_size_x = 16, local_size_y = 16, local_size_z = 1) in;
+
+uniform sampler2D u_y;
+uniform sampler2D u_u;
+uniform sampler2D u_v;
+uniform ivec2 u_size;
+uniform bool u_fullRange;
+layout(rgba8) writeonly uniform image2D u_target;
+
+void main()
+{
+  ivec2 p = ivec2(gl_GlobalInvocationID.xy);
+  if (p.x >= u_size.x || p.y >= u_size.y)
+    return;
+
+  ivec2 s = ivec2(p.x, u_size.y-1-p.y);
+  float y = texelFetch(u_y, s, 0).r;
+  float u = texelFetch(u_u, s/2, 0).r - 128./255.;
+  float v = texelFetch(u_v, s/2, 0).r - 128./255.;
+  if (!u_fullRange) {
+    y = (y - 16./255.) * 255./219.;
+    u *= 255./224.;
+    v *= 255./224.;
+  }
+
+  vec3 rgb = vec3(
+    y + 1.402*v,
+    y - .344136*u - .714136*v,
+    y + 1.772*u);
+  imageStore(u_target, p, vec4(clamp(rgb, 0., 1.), 1.));
+}